@@ -0,0 +1,165 @@
+/*
+ * Incompressible 2D fluid simulation based on the work of Jos Stam.
+ *
+ * Tracks which 16 x 16 tiles of the grid hold density, so the density solver can skip empty fluid.
+ */
+
+import java.util.Arrays;
+
+public class ActiveTiles {
+
+	static final int TILE = 16;
+
+	Solver solv;
+
+	//Number of tiles along each side, tile (ti, tj) covers cells 1 + TILE * ti to TILE * (ti + 1)
+	//of the interior, clipped to n. Tiles are numbered ti * tiles + tj.
+	int n, tiles;
+
+	//Tiles the density solver visits this step, and the same tiles as a row major list
+	boolean[] active;
+	int[] list;
+	int count;
+
+	//Tiles holding density above epsilon, and the same dilated along j only
+	boolean[] dense, rowDilated;
+
+	//Density at or below epsilon in a tile that goes inactive is dropped
+	float epsilon = 1e-5f;
+
+	//False when the density arrays may have been changed outside the tiles, for example while
+	//the sparse solver was switched off, so the next update scans every tile
+	boolean valid;
+
+	//Number of tiles added around dense tiles in the last update
+	int lastMargin;
+
+	public ActiveTiles (Solver solv) {
+		this.solv = solv;
+	}
+
+	void setup (int n) {
+		this.n = n;
+		tiles = (n + TILE - 1) / TILE;
+		active = new boolean[tiles * tiles];
+		dense = new boolean[tiles * tiles];
+		rowDilated = new boolean[tiles * tiles];
+		list = new int[tiles * tiles];
+		count = 0;
+		valid = true;
+	}
+
+	//Forces the next update to rescan the whole grid
+	public void invalidate () {
+		valid = false;
+	}
+
+	int rowStart (int tile) {
+		return 1 + TILE * (tile / tiles);
+	}
+
+	int rowEnd (int tile) {
+		return Math.min(n, TILE * (tile / tiles + 1));
+	}
+
+	int colStart (int tile) {
+		return 1 + TILE * (tile % tiles);
+	}
+
+	int colEnd (int tile) {
+		return Math.min(n, TILE * (tile % tiles + 1));
+	}
+
+	//Chooses the tiles for this step from density x, after sources have been added.
+		//Outside the active tiles both x and scratch are kept at zero, so the solver can read
+		//any cell without checking whether its tile is active. Density only moves into empty
+		//tiles by diffusing one cell per step or by advection along the velocity, so dense tiles
+		//are grown by one tile plus however many tiles the fastest cell can reach this step.
+	public void update (float[] x, float[] scratch) {
+
+		if (active == null || solv.n != n) {
+			setup (solv.n);
+			valid = false;
+		}
+
+		//Only active tiles and tiles with a new source can hold density
+		Arrays.fill(dense, false);
+		if (valid) {
+			for (int m = 0; m < count; m++) {
+				dense[list[m]] = isDense (x, list[m]);
+			}
+			for (int m = 0; m < solv.stampCount; m++) {
+				int k = solv.stamped[m];
+				int tile = tileOf (k / solv.size, k % solv.size);
+				if (!dense[tile]) {
+					dense[tile] = isDense (x, tile);
+				}
+			}
+		} else {
+			for (int tile = 0; tile < tiles * tiles; tile++) {
+				dense[tile] = isDense (x, tile);
+			}
+		}
+
+		//Furthest any cell looks back along the velocity in advect, in tiles. Velocity was last
+		//changed by the project at the end of velocitySolver, which kept its largest component.
+		int margin = Math.min(tiles, 1 + (int) Math.ceil(solv.timeStep * n * solv.maxVelocity / TILE));
+		lastMargin = margin;
+
+		//Box dilation by margin tiles, along j and then along i
+		for (int ti = 0; ti < tiles; ti++) {
+			for (int tj = 0; tj < tiles; tj++) {
+				boolean any = false;
+				for (int d = Math.max(0, tj - margin); d <= Math.min(tiles - 1, tj + margin) && !any; d++) {
+					any = dense[ti * tiles + d];
+				}
+				rowDilated[ti * tiles + tj] = any;
+			}
+		}
+
+		count = 0;
+		for (int ti = 0; ti < tiles; ti++) {
+			for (int tj = 0; tj < tiles; tj++) {
+				boolean any = false;
+				for (int d = Math.max(0, ti - margin); d <= Math.min(tiles - 1, ti + margin) && !any; d++) {
+					any = rowDilated[d * tiles + tj];
+				}
+
+				int tile = ti * tiles + tj;
+				if (any) {
+					list[count++] = tile;
+				} else if (active[tile] || !valid) {
+					clear (x, tile);
+					clear (scratch, tile);
+				}
+				active[tile] = any;
+			}
+		}
+
+		valid = true;
+	}
+
+	int tileOf (int i, int j) {
+		return Math.min(tiles - 1, Math.max(0, (i - 1) / TILE)) * tiles + Math.min(tiles - 1, Math.max(0, (j - 1) / TILE));
+	}
+
+	boolean isDense (float[] x, int tile) {
+		int size = solv.size;
+		for (int i = rowStart(tile); i <= rowEnd(tile); i++) {
+			int row = i * size;
+			for (int j = colStart(tile); j <= colEnd(tile); j++) {
+				if (Math.abs(x[row + j]) > epsilon) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	void clear (float[] x, int tile) {
+		int size = solv.size;
+		for (int i = rowStart(tile); i <= rowEnd(tile); i++) {
+			Arrays.fill(x, i * size + colStart(tile), i * size + colEnd(tile) + 1, 0f);
+		}
+	}
+}
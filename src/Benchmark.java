@@ -0,0 +1,367 @@
+/*
+ * Incompressible 2D fluid simulation based on the work of Jos Stam.
+ *
+ * Microbenchmarks for every Solver kernel and the particle update.
+ *
+ * Usage: java Benchmark [-n 64,128,256,512,1024] [-iter 5,10,20] [-kernels name,...]
+ *                       [-warmup ms] [-time ms] [-particles 20000]
+ *                       [-solver gs|redblack|cg|jacobi|strips] [-pressure iterative|multigrid|spectral] [-nofft] [-nosparse] [-nofuse]
+ *                       [-nowarm] [-tol 0.01] [-strips 4]
+ *                       [-verify]
+ *
+ * Every kernel is run back to back on a warmed up Solver, first for -warmup milliseconds
+ * so the JIT settles, then for -time milliseconds while being measured. Each line reports
+ * the mean time per call, the time per grid cell and the bytes allocated per call.
+ * Kernels that don't depend on the iteration count are only run for the first -iter value,
+ * and every grid kernel is run with and without user-drawn walls.
+ *
+ * -verify checks the vectorizable Jacobi sweep against a cell by cell scalar stencil, which
+ * catches a wrong result but not whether the JIT vectorized the sweep, and
+ * that every solver mode converges to the Gauss-Seidel solution, conjugate gradient also
+ * with an open right edge and with walls, and strips also with walls inside the strips. Strips
+ * always run with 3 strips here, so the halo exchange is checked even on a single core. With walls and a tolerance the other modes have to
+ * stop before running every iteration. It exits with status 1 if any check failed.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class Benchmark {
+
+	static String[] KERNELS = {"addSource", "setBound", "linearSolver", "advect", "project", "step", "particles"};
+
+	int[] sizes = {64, 128, 256, 512, 1024};
+	int[] iterations = {5, 10, 20};
+	List<String> kernels = Arrays.asList(KERNELS);
+	long warmupMillis = 300;
+	long timeMillis = 700;
+	int particleCount = 20000;
+	
+	int solverMode = Solver.GAUSS_SEIDEL;
+	int pressureMode = Solver.PRESSURE_ITERATIVE;
+	boolean autoSpectral = true;
+	boolean sparseDensity = true;
+	boolean fusedVelocity = true;
+	boolean warmStart = true;
+	float tolerance = 0;
+	int strips = Runtime.getRuntime().availableProcessors();
+
+	//Number of strips -verify runs with regardless of -strips, a single strip would just be the Gauss-Seidel sweep
+	static final int VERIFY_STRIPS = 3;
+
+	com.sun.management.ThreadMXBean threads;
+
+	public static void main (String[] args) {
+
+		System.setProperty("java.awt.headless", "true");
+
+		Benchmark bench = new Benchmark ();
+		boolean verify = false;
+
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.equals("-n")) {
+				bench.sizes = parseList(args[++i]);
+			} else if (arg.equals("-iter")) {
+				bench.iterations = parseList(args[++i]);
+			} else if (arg.equals("-kernels")) {
+				bench.kernels = Arrays.asList(args[++i].split(","));
+			} else if (arg.equals("-warmup")) {
+				bench.warmupMillis = Long.parseLong(args[++i]);
+			} else if (arg.equals("-time")) {
+				bench.timeMillis = Long.parseLong(args[++i]);
+			} else if (arg.equals("-particles")) {
+				bench.particleCount = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-solver")) {
+				bench.solverMode = Headless.parseMode(args[++i], new String[] {"gs", "redblack", "cg", "jacobi", "strips"});
+			} else if (arg.equals("-strips")) {
+				bench.strips = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-pressure")) {
+				bench.pressureMode = Headless.parseMode(args[++i], new String[] {"iterative", "multigrid", "spectral"});
+			} else if (arg.equals("-nofft")) {
+				bench.autoSpectral = false;
+			} else if (arg.equals("-verify")) {
+				verify = true;
+			} else if (arg.equals("-nosparse")) {
+				bench.sparseDensity = false;
+			} else if (arg.equals("-nofuse")) {
+				bench.fusedVelocity = false;
+			} else if (arg.equals("-nowarm")) {
+				bench.warmStart = false;
+			} else if (arg.equals("-tol")) {
+				bench.tolerance = Float.parseFloat(args[++i]);
+			} else {
+				throw new IllegalArgumentException("Unknown argument " + arg);
+			}
+		}
+
+		if (verify) {
+			System.exit(bench.verify () ? 0 : 1);
+		}
+		bench.run ();
+	}
+
+	static int[] parseList (String list) {
+		String[] parts = list.split(",");
+		int[] values = new int[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			values[i] = Integer.parseInt(parts[i]);
+		}
+		return values;
+	}
+
+	public Benchmark () {
+		//Allocation counters are a HotSpot extension, without them B/op is reported as n/a
+		if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+			threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+			if (!threads.isThreadAllocatedMemorySupported()) {
+				threads = null;
+			}
+		}
+	}
+
+	public void run () {
+
+		System.out.printf("%-13s %6s %5s %6s %14s %11s %12s%n", "kernel", "n", "iter", "walls", "ns/op", "ns/cell", "B/op");
+
+		for (int n : sizes) {
+			for (int iter = 0; iter < iterations.length; iter++) {
+				for (int walls = 0; walls < 2; walls++) {
+					for (String kernel : kernels) {
+
+						boolean iterDependent = kernel.equals("linearSolver") || kernel.equals("project") || kernel.equals("step");
+						if (!iterDependent && iter > 0) {
+							continue;
+						}
+						if (kernel.equals("particles") && walls > 0) {
+							continue;
+						}
+
+						measure (kernel, n, iterations[iter], walls == 1);
+					}
+				}
+			}
+		}
+	}
+
+	//Builds a Solver with fluid in motion so kernels see realistic data
+	Solver prepare (int n, int iter, boolean walls) {
+
+		Solver solv = new Solver ();
+		solv.setup(n, 0.2f, iter);
+		solv.solverMode = solverMode;
+		solv.pressureMode = pressureMode;
+		solv.autoSpectral = autoSpectral;
+		solv.sparseDensity = sparseDensity;
+		solv.fusedVelocity = fusedVelocity;
+		solv.warmStart = warmStart;
+		solv.tolerance = tolerance;
+		solv.strips.count = strips;
+		solv.metrics.enabled = false;
+
+		if (walls) {
+			for (int i = n / 4; i < 3 * n / 4; i++) {
+				solv.addWall(i, n / 2);
+				solv.addWall(n / 3, i);
+			}
+		}
+
+		for (int step = 0; step < 20; step++) {
+			stir (solv);
+			solv.step ();
+		}
+		return solv;
+	}
+
+	//Emits density and upward velocity from a square at the bottom center
+	void stir (Solver solv) {
+		int n = solv.n, r = Math.max(2, n / 20);
+		for (int i = n / 2 - r; i < n / 2 + r; i++) {
+			for (int j = 3; j < 3 + r; j++) {
+				solv.setDensitySource(i, j, 5);
+				solv.setVelocitySource(i, j, 0, 0.05f);
+			}
+		}
+	}
+
+	void measure (String kernel, int n, int iter, boolean walls) {
+
+		Solver solv = prepare (n, iter, walls);
+		Runnable op = kernel (kernel, solv);
+
+		long deadline = System.nanoTime() + warmupMillis * 1000000L;
+		while (System.nanoTime() < deadline) {
+			op.run();
+		}
+
+		long bytes = allocatedBytes ();
+		long start = System.nanoTime();
+		long ops = 0;
+		deadline = start + timeMillis * 1000000L;
+		do {
+			op.run();
+			ops++;
+		} while (System.nanoTime() < deadline);
+		long elapsed = System.nanoTime() - start;
+		bytes = allocatedBytes () - bytes;
+		solv.close();
+
+		double perOp = (double) elapsed / ops;
+		double perCell = kernel.equals("particles") ? perOp / particleCount : perOp / ((double) n * n);
+
+		System.out.printf("%-13s %6d %5d %6s %14.1f %11.3f %12s%n", kernel, n, iter, walls, perOp, perCell,
+				threads == null ? "n/a" : String.format("%.1f", (double) bytes / ops));
+	}
+
+	//The call being measured for each kernel name.
+		//For particles ns/cell is per particle instead.
+	Runnable kernel (String name, Solver solv) {
+
+		final float a = solv.timeStep * 0.0001f * solv.n * solv.n;
+		final float[] scratch = new float[solv.size * solv.size];
+		final float[] scratch2 = new float[solv.size * solv.size];
+
+		if (name.equals("addSource")) {
+			stir (solv);
+			return () -> solv.addSource(solv.dens, solv.densSource);
+		} else if (name.equals("setBound")) {
+			return () -> solv.setBound(0, solv.dens);
+		} else if (name.equals("linearSolver")) {
+			return () -> solv.linearSolver(0, scratch, solv.dens, a, 1 + 4 * a);
+		} else if (name.equals("advect")) {
+			return () -> solv.advect(0, scratch, solv.dens, solv.Xvelo, solv.Yvelo);
+		} else if (name.equals("project")) {
+			return () -> solv.project(solv.Xvelo, solv.Yvelo, scratch, scratch2);
+		} else if (name.equals("step")) {
+			return () -> {
+				stir (solv);
+				solv.step ();
+			};
+		} else if (name.equals("particles")) {
+			Particles particles = new Particles ();
+			int width = 700, height = 700;
+			float cell = (float) width / solv.n;
+			particles.reset(particleCount, width, height, new Random (1));
+			return () -> particles.update(solv, cell, cell, 1, 1, width, height, 1100);
+		}
+		throw new IllegalArgumentException("Unknown kernel " + name);
+	}
+
+	//Compares the solver kernels against reference results for every -n, returns false if any differ
+	boolean verify () {
+
+		String[] modes = {"gs", "redblack", "cg", "jacobi", "strips"};
+		boolean ok = true;
+
+		for (int n : sizes) {
+			//Without walls, since the in-place Gauss-Seidel sweep also relaxes wall cells and settles
+			//on a slightly different solution next to them than the other modes
+			Solver solv = prepare (n, 10, false);
+			solv.strips.count = VERIFY_STRIPS;
+			int cells = solv.size * solv.size;
+			Random rand = new Random (n);
+			float[] x = new float[cells], x0 = new float[cells];
+			for (int k = 0; k < cells; k++) {
+				x[k] = rand.nextFloat();
+				x0[k] = rand.nextFloat();
+			}
+
+			//A single sweep must match the plain stencil exactly, checked after the JIT has compiled it
+			float a = 1, invC = 1 / 5f;
+			float[] sweep = new float[cells], reference = new float[cells];
+			long deadline = System.nanoTime() + warmupMillis * 1000000L;
+			while (System.nanoTime() < deadline) {
+				solv.jacobiRows(sweep, x, x0, a, invC, 1, n);
+			}
+			for (int i = 1; i <= n; i++) {
+				for (int j = 1; j <= n; j++) {
+					reference[solv.index(i, j)] = (a * (x[solv.index(i - 1, j)] + x[solv.index(i + 1, j)]
+							+ x[solv.index(i, j - 1)] + x[solv.index(i, j + 1)]) + x0[solv.index(i, j)]) * invC;
+				}
+			}
+			ok &= report ("jacobi sweep", n, maxDifference (solv, sweep, reference), 0);
+
+			//Every mode must converge to the same solution of a well conditioned diffusion system
+			solv.conjugateGradient.tolerance = 1e-7f;
+			float[] expected = converge (solv, Solver.GAUSS_SEIDEL, x0);
+			for (int mode = 1; mode < modes.length; mode++) {
+				ok &= report (modes[mode] + " solve", n, maxDifference (solv, converge (solv, mode, x0), expected), 1e-4);
+			}
+
+			//The open right edge folds into conjugate gradient's matrix with a different sign
+			solv.openRight = true;
+			expected = converge (solv, Solver.GAUSS_SEIDEL, x0);
+			ok &= report ("cg open solve", n, maxDifference (solv, converge (solv, Solver.CONJUGATE_GRADIENT, x0), expected), 1e-4);
+			solv.openRight = false;
+
+			//Strips meet Gauss-Seidel's solution with walls as long as no wall touches the row just above
+			//a strip, which its halo holds one sweep older, so each strip gets walls clear of its edges
+			for (int w = 0; w < VERIFY_STRIPS; w++) {
+				int first = 1 + w * n / VERIFY_STRIPS, last = (w + 1) * n / VERIFY_STRIPS;
+				for (int j = n / 4; j < 3 * n / 4; j++) {
+					solv.addWall((first + last) / 2, j);
+				}
+				for (int i = first + 3; i <= last - 3; i++) {
+					solv.addWall(i, n / 3 + w);
+				}
+			}
+			expected = converge (solv, Solver.GAUSS_SEIDEL, x0);
+			ok &= report ("strips walled", n, maxDifference (solv, converge (solv, Solver.STRIPS, x0), expected), 1e-4);
+			solv.close();
+
+			//Next to walls conjugate gradient can't build a symmetric matrix and has to give the
+			//Gauss-Seidel solution instead of diverging
+			Solver walled = prepare (n, 10, true);
+			walled.strips.count = VERIFY_STRIPS;
+			expected = converge (walled, Solver.GAUSS_SEIDEL, x0);
+			ok &= report ("cg walled solve", n, maxDifference (walled, converge (walled, Solver.CONJUGATE_GRADIENT, x0), expected), 1e-4);
+
+			//With a tolerance the solvers that check the residual have to stop early next to walls too
+			walled.tolerance = 0.01f;
+			for (int mode = 0; mode < modes.length; mode++) {
+				if (mode != Solver.CONJUGATE_GRADIENT) {
+					converge (walled, mode, x0);
+					int limit = mode == Solver.JACOBI ? 2 * walled.iterations : walled.iterations;
+					boolean early = walled.lastIterations < limit;
+					System.out.printf("%-16s %6d  %d of %d iterations  %s%n", modes[mode] + " exit", n, walled.lastIterations, limit, early ? "ok" : "FAILED");
+					ok &= early;
+				}
+			}
+			walled.close();
+		}
+		return ok;
+	}
+
+	float[] converge (Solver solv, int mode, float[] x0) {
+		float[] x = new float[solv.size * solv.size];
+		solv.solverMode = mode;
+		solv.iterations = 200;
+		solv.linearSolver(0, x, x0, 1, 5);
+		return x;
+	}
+
+	double maxDifference (Solver solv, float[] x, float[] y) {
+		double max = 0;
+		for (int i = 1; i <= solv.n; i++) {
+			for (int j = 1; j <= solv.n; j++) {
+				max = Math.max(max, Math.abs(x[solv.index(i, j)] - y[solv.index(i, j)]));
+			}
+		}
+		return max;
+	}
+
+	boolean report (String check, int n, double difference, double tolerance) {
+		boolean pass = difference <= tolerance;
+		System.out.printf("%-16s %6d  max difference %.3g  %s%n", check, n, difference, pass ? "ok" : "FAILED");
+		return pass;
+	}
+
+	long allocatedBytes () {
+		if (threads == null) {
+			return 0;
+		}
+		return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+}
@@ -0,0 +1,191 @@
+/*
+ * Incompressible 2D fluid simulation based on the work of Jos Stam.
+ *
+ * Complete copy of a Solver and its particles that can be saved to and loaded from a file.
+ *
+ * File layout, little endian:
+ *
+ *   int magic 'FLCK', int version
+ *   int n, float timeStep, int iterations, int openRight (0 or 1), float viscosity, float diff, int particle count
+ *   (n + 2)^2 floats each of drawBnd, dens, dens2, Xvelo, Xvelo2, Yvelo, Yvelo2, pressure[0], pressure[1]
+ *   particle count floats each of x, y, xOld, yOld
+ *
+ * Sources are not stored, they are always empty between steps.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class Checkpoint {
+
+	static final int MAGIC = 0x464c434b;
+	static final int VERSION = 1;
+
+	static final int HEADER_BYTES = 9 * 4;
+	static final int FIELDS = 9;
+
+	int n;
+	float timeStep;
+	int iterations;
+	boolean openRight;
+	float viscosity, diff;
+
+	//The Solver arrays in the order they are stored, each (n + 2)^2 long
+	float[][] fields = new float[FIELDS][];
+
+	int particleCount;
+	float[] x, y, xOld, yOld;
+
+	//Copies the state of solv and particles into this checkpoint and returns it. This is the only
+	//part that has to run on the simulation thread, writing the copy out can happen anywhere.
+	//Arrays of an earlier capture of the same size are reused, so repeated checkpoints don't allocate.
+	public Checkpoint capture (Solver solv, Particles particles) {
+
+		n = solv.n;
+		timeStep = solv.timeStep;
+		iterations = solv.iterations;
+		openRight = solv.openRight;
+		viscosity = solv.viscosity;
+		diff = solv.diff;
+
+		float[][] from = fieldsOf (solv);
+		int cells = solv.size * solv.size;
+		for (int f = 0; f < FIELDS; f++) {
+			fields[f] = copy (from[f], cells, fields[f]);
+		}
+
+		particleCount = particles.count;
+		x = copy (particles.x, particleCount, x);
+		y = copy (particles.y, particleCount, y);
+		xOld = copy (particles.xOld, particleCount, xOld);
+		yOld = copy (particles.yOld, particleCount, yOld);
+		return this;
+	}
+
+	//The first length floats of from, in to if it has exactly that length
+	static float[] copy (float[] from, int length, float[] to) {
+		if (to == null || to.length != length) {
+			to = new float[length];
+		}
+		System.arraycopy(from, 0, to, 0, length);
+		return to;
+	}
+
+	static float[][] fieldsOf (Solver solv) {
+		return new float[][] {solv.drawBnd, solv.dens, solv.dens2, solv.Xvelo, solv.Xvelo2,
+				solv.Yvelo, solv.Yvelo2, solv.pressure[0], solv.pressure[1]};
+	}
+
+	//Replaces the state of solv and particles with this checkpoint, only call between steps
+	public void restore (Solver solv, Particles particles) {
+
+		//Arrays are only reallocated if the grid size differs
+		if (solv.dens == null || solv.n != n) {
+			solv.setup(n, timeStep, iterations);
+		} else {
+			solv.clearSources();
+			solv.timeStep = timeStep;
+			solv.iterations = iterations;
+		}
+		solv.openRight = openRight;
+		solv.viscosity = viscosity;
+		solv.diff = diff;
+
+		float[][] to = fieldsOf (solv);
+		for (int f = 0; f < FIELDS; f++) {
+			System.arraycopy(fields[f], 0, to[f], 0, fields[f].length);
+		}
+		solv.rebuildWalls();
+		solv.tiles.invalidate();
+
+		particles.reserve(particleCount);
+		particles.count = particleCount;
+		System.arraycopy(x, 0, particles.x, 0, particleCount);
+		System.arraycopy(y, 0, particles.y, 0, particleCount);
+		System.arraycopy(xOld, 0, particles.xOld, 0, particleCount);
+		System.arraycopy(yOld, 0, particles.yOld, 0, particleCount);
+	}
+
+	long bytes () {
+		long cells = (long) (n + 2) * (n + 2);
+		return HEADER_BYTES + 4L * (FIELDS * cells + 4L * particleCount);
+	}
+
+	//Writes the checkpoint through a memory mapping of the file
+	public void write (File file) throws IOException {
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+			raf.setLength(bytes ());
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes ());
+			map.order(ByteOrder.LITTLE_ENDIAN);
+
+			map.putInt(MAGIC).putInt(VERSION);
+			map.putInt(n).putFloat(timeStep).putInt(iterations).putInt(openRight ? 1 : 0);
+			map.putFloat(viscosity).putFloat(diff).putInt(particleCount);
+
+			FloatBuffer floats = map.asFloatBuffer();
+			for (int f = 0; f < FIELDS; f++) {
+				floats.put(fields[f]);
+			}
+			floats.put(x).put(y).put(xOld).put(yOld);
+
+			map.force();
+		}
+	}
+
+	//Reads a checkpoint through a memory mapping of the file
+	public static Checkpoint read (File file) throws IOException {
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			if (channel.size() < HEADER_BYTES) {
+				throw new IOException(file + " is not a checkpoint, it is shorter than the header");
+			}
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			map.order(ByteOrder.LITTLE_ENDIAN);
+
+			if (map.getInt() != MAGIC) {
+				throw new IOException(file + " is not a checkpoint");
+			}
+			int version = map.getInt();
+			if (version != VERSION) {
+				throw new IOException(file + " has unsupported checkpoint version " + version);
+			}
+
+			Checkpoint c = new Checkpoint ();
+			c.n = map.getInt();
+			c.timeStep = map.getFloat();
+			c.iterations = map.getInt();
+			c.openRight = map.getInt() != 0;
+			c.viscosity = map.getFloat();
+			c.diff = map.getFloat();
+			c.particleCount = map.getInt();
+
+			//A damaged header must not allocate arrays the file can't fill. The fields are int indexed
+			//arrays, so n + 2 squared has to fit an int.
+			if (c.n <= 0 || c.n > 46338 || c.particleCount < 0) {
+				throw new IOException(file + " has an invalid checkpoint header, n " + c.n + " and " + c.particleCount + " particles");
+			}
+			if (channel.size() != c.bytes()) {
+				throw new IOException(file + " is " + channel.size() + " bytes, a checkpoint of n " + c.n + " with " + c.particleCount + " particles is " + c.bytes());
+			}
+
+			FloatBuffer floats = map.asFloatBuffer();
+			int cells = (c.n + 2) * (c.n + 2);
+			for (int f = 0; f < FIELDS; f++) {
+				c.fields[f] = new float[cells];
+				floats.get(c.fields[f]);
+			}
+			c.x = new float[c.particleCount];
+			c.y = new float[c.particleCount];
+			c.xOld = new float[c.particleCount];
+			c.yOld = new float[c.particleCount];
+			floats.get(c.x).get(c.y).get(c.xOld).get(c.yOld);
+			return c;
+		}
+	}
+}
@@ -0,0 +1,305 @@
+/*
+ * Incompressible 2D fluid simulation based on the work of Jos Stam.
+ *
+ * Preconditioned conjugate gradient backend for Solver.linearSolver.
+ *
+ * References:
+ *
+ * Jonathan Richard Shewchuk, "An Introduction to the Conjugate Gradient Method Without the Agonizing Pain", 1994.
+ * Robert Bridson, "Fluid Simulation for Computer Graphics", A K Peters, 2008. Chapter 4.
+ */
+
+import java.util.Arrays;
+
+public class ConjugateGradient {
+
+	//Preconditioners
+		//JACOBI divides the residual by the diagonal of the matrix
+		//INCOMPLETE_CHOLESKY uses the zero fill-in Cholesky factor of the 5 point stencil
+	static final int JACOBI = 0;
+	static final int INCOMPLETE_CHOLESKY = 1;
+	int preconditioner = INCOMPLETE_CHOLESKY;
+
+	//Iteration stops once the largest residual is below tolerance times the largest
+	//value of the right hand side, or after maxIterations iterations
+	float tolerance = 1e-3f;
+	int maxIterations = 200;
+
+	//Statistics from the last call to solve
+	int lastIterations;
+	float lastResidual;
+
+	Solver solv;
+
+	//Work arrays, laid out like the solver's fields
+		//free is 1 for cells that are unknowns and 0 for ghost cells and cells setBound overwrites
+		//diag is the diagonal of the matrix, precon the inverse diagonal of the Cholesky factor
+		//r, z, p, q are the residual, preconditioned residual, search direction and A * p
+	int n, size;
+	float[] free, diag, precon;
+	float[] r, z, p, q;
+
+	//setBound applied to an array holding k + 1 in every cell k, so each cell it overwrites ends up
+	//holding plus or minus 1 + the index of the cell it was copied from, or 0
+	float[] probe;
+
+	//False if setBound ties a cell next to the fluid to some other fluid cell than the one reading
+	//it, see solve. Set by buildMatrix.
+	boolean exact;
+
+	public ConjugateGradient (Solver s) {
+		solv = s;
+	}
+
+	void setup (int n) {
+
+		this.n = n;
+		size = n + 2;
+
+		free	= new float[size * size];
+		diag	= new float[size * size];
+		precon	= new float[size * size];
+		r		= new float[size * size];
+		z		= new float[size * size];
+		p		= new float[size * size];
+		q		= new float[size * size];
+		probe	= new float[size * size];
+	}
+
+	//Solves c * x - a * (sum of the 4 neighbors of x) = x0 with the boundary conditions of setBound(b).
+		//Cells setBound overwrites aren't unknowns. Where such a cell is a copy of the fluid cell
+		//reading it, as the ghost cells along the edges are, it folds into the diagonal of that cell
+		//with the sign setBound gives it, which keeps the matrix symmetric as conjugate gradient needs.
+		//Around user-drawn walls setBound copies cells from two cells away, so the cells diagonal
+		//to a wall read a copy of another fluid cell and the matrix isn't symmetric. Then the
+		//sequential Gauss-Seidel solver runs instead.
+		//x is used as the initial guess and setBound(b, x) is applied to the result.
+	public void solve (int b, float[] x, float[] x0, float a, float c) {
+
+		if (free == null || n != solv.n) {
+			setup (solv.n);
+		}
+
+		buildMatrix (b, a, c);
+		if (!exact) {
+			lastIterations = 0;
+			solv.gaussSeidelSolver (b, x, x0, a, c);
+			return;
+		}
+
+		//If no cell is pinned the equation only fixes x up to a constant,
+		//and the right hand side has to sum to zero for a solution to exist
+		boolean singular = b == 0 && c == 4 * a && a != 0;
+		float shift = 0;
+
+		if (singular) {
+			double sum = 0;
+			int count = 0;
+			for (int k = 0; k < size * size; k++) {
+				sum += free[k] * x0[k];
+				count += (int) free[k];
+			}
+			shift = count > 0 ? (float) (sum / count) : 0;
+		}
+
+		//r = x0 - A x
+		float bMax = 0;
+		for (int i = 1; i <= n; i++) {
+			int row = i * size;
+			for (int j = 1; j <= n; j++) {
+				int k = row + j;
+				if (free[k] == 0) {
+					r[k] = 0;
+					continue;
+				}
+				float rhs = x0[k] - shift;
+				float sum = x[k - size] * free[k - size] + x[k + size] * free[k + size] + x[k - 1] * free[k - 1] + x[k + 1] * free[k + 1];
+				r[k] = rhs - (diag[k] * x[k] - a * sum);
+				bMax = Math.max(bMax, Math.abs(rhs));
+			}
+		}
+
+		float target = tolerance * bMax;
+
+		lastIterations = 0;
+		lastResidual = maxAbs (r);
+
+		if (lastResidual > target) {
+
+			applyPreconditioner (a);
+			System.arraycopy(z, 0, p, 0, size * size);
+			double rz = dot (r, z);
+
+			while (lastIterations < maxIterations) {
+
+				applyMatrix (a);
+
+				double pq = dot (p, q);
+				if (pq == 0) {
+					break;
+				}
+				float alpha = (float) (rz / pq);
+
+				for (int k = 0; k < size * size; k++) {
+					x[k] += alpha * p[k];
+					r[k] -= alpha * q[k];
+				}
+
+				lastIterations++;
+				lastResidual = maxAbs (r);
+				if (lastResidual <= target) {
+					break;
+				}
+
+				applyPreconditioner (a);
+				double rzNew = dot (r, z);
+				float beta = (float) (rzNew / rz);
+				rz = rzNew;
+
+				for (int k = 0; k < size * size; k++) {
+					p[k] = z[k] + beta * p[k];
+				}
+			}
+		}
+
+		solv.setBound (b, x);
+	}
+
+	//Fills free, diag and precon for boundary type b, and sets exact
+	void buildMatrix (int b, float a, float c) {
+
+		//Cell indices have to be exact in a float
+		exact = size * size < 1 << 24;
+		if (!exact) {
+			return;
+		}
+		for (int k = 0; k < size * size; k++) {
+			probe[k] = k + 1;
+		}
+		solv.setBound (b, probe);
+
+		//A cell is an unknown if setBound leaves it as it is
+		Arrays.fill(free, 0f);
+		for (int i = 1; i <= n; i++) {
+			for (int j = 1; j <= n; j++) {
+				int k = i * size + j;
+				free[k] = probe[k] == k + 1 ? 1 : 0;
+			}
+		}
+
+		Arrays.fill(diag, 0f);
+		for (int i = 1; i <= n; i++) {
+			for (int j = 1; j <= n; j++) {
+				int k = i * size + j;
+				if (free[k] == 0) {
+					continue;
+				}
+				float d = c;
+				d -= a * fold (k, k - size);
+				d -= a * fold (k, k + size);
+				d -= a * fold (k, k - 1);
+				d -= a * fold (k, k + 1);
+				diag[k] = d;
+			}
+		}
+		if (!exact) {
+			return;
+		}
+
+		Arrays.fill(precon, 0f);
+		for (int i = 1; i <= n; i++) {
+			for (int j = 1; j <= n; j++) {
+				int k = i * size + j;
+				if (free[k] == 0) {
+					continue;
+				}
+				if (preconditioner == JACOBI) {
+					precon[k] = 1 / diag[k];
+				} else {
+					float left = a * precon[k - size];
+					float below = a * precon[k - 1];
+					float e = diag[k] - left * left - below * below;
+
+					//Falls back to the diagonal where the factorization breaks down
+					if (e < 0.25f * diag[k]) {
+						e = diag[k];
+					}
+					precon[k] = (float) (1 / Math.sqrt(e));
+				}
+			}
+		}
+	}
+
+	//Sign of the copy of cell k that setBound leaves in its neighbor m, 0 if m is an unknown or zeroed.
+		//Clears exact if m is a copy of another cell.
+	float fold (int k, int m) {
+
+		if (free[m] != 0 || probe[m] == 0) {
+			return 0;
+		}
+		if (Math.abs(probe[m]) != k + 1) {
+			exact = false;
+			return 0;
+		}
+		return Math.signum(probe[m]);
+	}
+
+	//q = A p
+	void applyMatrix (float a) {
+
+		for (int i = 1; i <= n; i++) {
+			int row = i * size;
+			for (int j = 1; j <= n; j++) {
+				int k = row + j;
+				q[k] = free[k] * (diag[k] * p[k] - a * (p[k - size] + p[k + size] + p[k - 1] + p[k + 1]));
+			}
+		}
+	}
+
+	//z = M^-1 r
+	void applyPreconditioner (float a) {
+
+		if (preconditioner == JACOBI) {
+			for (int k = 0; k < size * size; k++) {
+				z[k] = r[k] * precon[k];
+			}
+			return;
+		}
+
+		//Forward substitution with the lower triangular factor, stored in z
+		for (int i = 1; i <= n; i++) {
+			int row = i * size;
+			for (int j = 1; j <= n; j++) {
+				int k = row + j;
+				z[k] = (r[k] + a * (precon[k - size] * z[k - size] + precon[k - 1] * z[k - 1])) * precon[k];
+			}
+		}
+
+		//Backward substitution with its transpose
+		for (int i = n; i >= 1; i--) {
+			int row = i * size;
+			for (int j = n; j >= 1; j--) {
+				int k = row + j;
+				z[k] = (z[k] + a * precon[k] * (z[k + size] + z[k + 1])) * precon[k];
+			}
+		}
+	}
+
+	double dot (float[] u, float[] v) {
+
+		double sum = 0;
+		for (int k = 0; k < size * size; k++) {
+			sum += u[k] * v[k];
+		}
+		return sum;
+	}
+
+	float maxAbs (float[] u) {
+
+		float max = 0;
+		for (int k = 0; k < size * size; k++) {
+			max = Math.max(max, Math.abs(u[k]));
+		}
+		return max;
+	}
+}
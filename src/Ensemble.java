@@ -0,0 +1,95 @@
+/*
+ * Incompressible 2D fluid simulation based on the work of Jos Stam.
+ *
+ * Many small independent simulations stepped together on a thread pool.
+ *
+ * Each member is an ordinary Solver with its own timeStep, viscosity, diff and walls. A grid of
+ * n = 32 to 80 is far too small to split across cores, so instead whole members are handed out:
+ * step() splits them into contiguous batches and every pool thread steps the members of one batch
+ * back to back, keeping the half megabyte or so of arrays a member has in that core's cache.
+ */
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+public class Ensemble {
+
+	ArrayList<Solver> members = new ArrayList<Solver> ();
+	ForkJoinPool pool;
+
+	//Number of batches per pool thread, more than one evens out members that take longer than others
+	int batchesPerThread = 4;
+
+	//Total member steps taken
+	long steps;
+
+	public Ensemble (int threads) {
+		pool = new ForkJoinPool (threads);
+	}
+
+	//Adds a member with an n x n grid and returns its index.
+		//Members start with the default sequential Gauss-Seidel solver and don't keep per-phase timings.
+		//Their solverMode shouldn't be set to RED_BLACK or STRIPS, which run threads of their own
+		//while the pool threads are already busy with other members.
+	public int add (int n, float timeStep, int iterations, float viscosity, float diff) {
+		Solver solv = new Solver ();
+		solv.setup(n, timeStep, iterations);
+		solv.viscosity = viscosity;
+		solv.diff = diff;
+		solv.metrics.enabled = false;
+		members.add(solv);
+		return members.size() - 1;
+	}
+
+	public Solver member (int k) {
+		return members.get(k);
+	}
+
+	public int size () {
+		return members.size();
+	}
+
+	//Steps every member once
+	public void step () {
+		step (null);
+	}
+
+	//Steps every member once, calling input with the index of each member on the thread that steps it,
+		//just before it does, so sources can be set without a separate pass over the members
+	public void step (IntConsumer input) {
+
+		int count = members.size();
+		int batches = Math.min(count, pool.getParallelism() * batchesPerThread);
+		steps += count;
+		if (batches <= 1) {
+			stepMembers (input, 0, count);
+			return;
+		}
+
+		//Running the parallel stream from inside the pool keeps its tasks on the pool's threads
+		int perBatch = (count + batches - 1) / batches;
+		pool.submit(() -> IntStream.range(0, batches).parallel().forEach(batch -> {
+			int start = batch * perBatch;
+			stepMembers (input, start, Math.min(count, start + perBatch));
+		})).join();
+	}
+
+	void stepMembers (IntConsumer input, int start, int end) {
+		for (int k = start; k < end; k++) {
+			if (input != null) {
+				input.accept(k);
+			}
+			members.get(k).step();
+		}
+	}
+
+	//Stops the pool threads and any threads of the members, the ensemble can't be stepped afterwards
+	public void shutdown () {
+		pool.shutdown();
+		for (Solver solv : members) {
+			solv.close();
+		}
+	}
+}
@@ -0,0 +1,148 @@
+/*
+ * Incompressible 2D fluid simulation based on the work of Jos Stam.
+ *
+ * Mixed radix fast Fourier transform of a fixed length.
+ *
+ * References:
+ *
+ * James W. Cooley, John W. Tukey, "An Algorithm for the Machine Calculation of Complex Fourier Series",
+ * Mathematics of Computation 19, 1965, 297-301.
+ * William H. Press et al., "Numerical Recipes", Third Edition, Cambridge University Press, 2007. Chapter 12.
+ */
+
+public class FFT {
+
+	int length;
+
+	//Twiddle factors, cos and sin of 2 * pi * k / length
+	double[] cos, sin;
+
+	//Prime factors of length, applied from first to last by the recursion
+	int[] factors;
+
+	//Input copy and per-butterfly scratch, reused between transforms
+	double[] inRe, inIm;
+	double[] tempRe, tempIm;
+
+	//Precomputes the twiddle table and factorization for transforms of the given length.
+		//Factors of 2 use a dedicated butterfly, any other prime factor p costs p operations per
+		//element, so lengths made of small primes are fastest.
+	public FFT (int length) {
+
+		this.length = length;
+
+		cos = new double[length];
+		sin = new double[length];
+		for (int k = 0; k < length; k++) {
+			cos[k] = Math.cos(2 * Math.PI * k / length);
+			sin[k] = Math.sin(2 * Math.PI * k / length);
+		}
+
+		int count = 0;
+		int[] found = new int[32];
+		int largest = 2;
+		for (int m = length, p = 2; m > 1; ) {
+			if (m % p == 0) {
+				found[count++] = p;
+				largest = Math.max(largest, p);
+				m /= p;
+			} else {
+				p = p == 2 ? 3 : p + 2;
+				if (p * p > m) {
+					p = m;
+				}
+			}
+		}
+
+		factors = new int[count];
+		System.arraycopy(found, 0, factors, 0, count);
+
+		inRe = new double[length];
+		inIm = new double[length];
+		tempRe = new double[largest];
+		tempIm = new double[largest];
+	}
+
+	//In place transform of the complex sequence (re, im).
+		//The forward transform computes X[k] = sum of x[j] * e^(-2 pi i j k / length),
+		//the inverse uses e^(+2 pi i j k / length) and divides by length.
+	public void transform (double[] re, double[] im, boolean inverse) {
+
+		System.arraycopy(re, 0, inRe, 0, length);
+		System.arraycopy(im, 0, inIm, 0, length);
+
+		transform (0, 1, re, im, 0, length, 0, inverse ? -1 : 1);
+
+		if (inverse) {
+			double scale = 1.0 / length;
+			for (int k = 0; k < length; k++) {
+				re[k] *= scale;
+				im[k] *= scale;
+			}
+		}
+	}
+
+	//Decimation in time step.
+		//Transforms the len elements of the input starting at inOff spaced stride apart into
+		//out[outOff .. outOff + len). The input is split into p interleaved subsequences which are
+		//transformed recursively, then combined with X[k + q m] = sum over r of W^(r (k + q m)) Y_r[k].
+	void transform (int inOff, int stride, double[] outRe, double[] outIm, int outOff, int len, int factor, int sign) {
+
+		if (len == 1) {
+			outRe[outOff] = inRe[inOff];
+			outIm[outOff] = inIm[inOff];
+			return;
+		}
+
+		int p = factors[factor];
+		int m = len / p;
+
+		for (int r = 0; r < p; r++) {
+			transform (inOff + r * stride, stride * p, outRe, outIm, outOff + r * m, m, factor + 1, sign);
+		}
+
+		//W_len^x is W_length^(x * stride) since stride * len == length at every level
+		if (p == 2) {
+			for (int k = 0; k < m; k++) {
+				int t = k * stride;
+				double wr = cos[t], wi = -sign * sin[t];
+
+				int a = outOff + k, b = a + m;
+				double br = outRe[b] * wr - outIm[b] * wi;
+				double bi = outRe[b] * wi + outIm[b] * wr;
+
+				outRe[b] = outRe[a] - br;
+				outIm[b] = outIm[a] - bi;
+				outRe[a] += br;
+				outIm[a] += bi;
+			}
+			return;
+		}
+
+		for (int k = 0; k < m; k++) {
+
+			for (int r = 0; r < p; r++) {
+				int t = r * k * stride;
+				double wr = cos[t], wi = -sign * sin[t];
+				double yr = outRe[outOff + r * m + k], yi = outIm[outOff + r * m + k];
+				tempRe[r] = yr * wr - yi * wi;
+				tempIm[r] = yr * wi + yi * wr;
+			}
+
+			for (int q = 0; q < p; q++) {
+				double sumRe = 0, sumIm = 0;
+				for (int r = 0, rq = 0; r < p; r++, rq += q) {
+					if (rq >= p) {
+						rq -= p;
+					}
+					int t = rq * m * stride;
+					double wr = cos[t], wi = -sign * sin[t];
+					sumRe += tempRe[r] * wr - tempIm[r] * wi;
+					sumIm += tempRe[r] * wi + tempIm[r] * wr;
+				}
+				outRe[outOff + k + q * m] = sumRe;
+				outIm[outOff + k + q * m] = sumIm;
+			}
+		}
+	}
+}
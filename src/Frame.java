@@ -0,0 +1,57 @@
+/*
+ * Incompressible 2D fluid simulation based on the work of Jos Stam.
+ *
+ * Copy of everything the Renderer draws, taken by the simulation thread after each step.
+ */
+
+public class Frame {
+
+	//Number of steps taken when the copy was made, 0 for a frame that was never filled
+	long step;
+	int n, size;
+
+	float[] dens = new float[0];
+	float[] Xvelo = new float[0];
+	float[] Yvelo = new float[0];
+	float[] drawBnd = new float[0];
+
+	int particleCount;
+	float[] x = new float[0], y = new float[0];
+	float[] xOld = new float[0], yOld = new float[0];
+
+	//Copies the grids and particle positions, growing the arrays only when they're too small
+	public void capture (Solver solv, Particles particles, long step) {
+
+		this.step = step;
+		n = solv.n;
+		size = solv.size;
+
+		int cells = size * size;
+		if (dens.length < cells) {
+			dens = new float[cells];
+			Xvelo = new float[cells];
+			Yvelo = new float[cells];
+			drawBnd = new float[cells];
+		}
+		System.arraycopy(solv.dens, 0, dens, 0, cells);
+		System.arraycopy(solv.Xvelo, 0, Xvelo, 0, cells);
+		System.arraycopy(solv.Yvelo, 0, Yvelo, 0, cells);
+		System.arraycopy(solv.drawBnd, 0, drawBnd, 0, cells);
+
+		particleCount = particles.size();
+		if (x.length < particleCount) {
+			x = new float[particleCount];
+			y = new float[particleCount];
+			xOld = new float[particleCount];
+			yOld = new float[particleCount];
+		}
+		System.arraycopy(particles.x, 0, x, 0, particleCount);
+		System.arraycopy(particles.y, 0, y, 0, particleCount);
+		System.arraycopy(particles.xOld, 0, xOld, 0, particleCount);
+		System.arraycopy(particles.yOld, 0, yOld, 0, particleCount);
+	}
+
+	public int index (int i, int j) {
+		return i * size + j;
+	}
+}
@@ -0,0 +1,469 @@
+/*
+ * Incompressible 2D fluid simulation based on the work of Jos Stam.
+ *
+ * Runs the Solver without a window, for parameter sweeps and timing.
+ *
+ * Usage: java Headless [-n 80] [-dt 0.2] [-iter 10] [-steps 1000] [-warmup 100] [-script file]
+ *                      [-solver gs|redblack|cg|jacobi|strips] [-pressure iterative|multigrid|spectral] [-nofft] [-nosparse] [-nofuse]
+ *                      [-nowarm] [-tol 0.01] [-metrics] [-load checkpoint] [-save checkpoint]
+ *                      [-record file] [-every 1] [-encoding raw|zero|delta] [-rgb file] [-replay file]
+ *                      [-ensemble 100] [-threads 4] [-strips 4]
+ *
+ * A script is a text file with one command per line, grid indices run from 1 to n.
+ * Lines starting with # are ignored. Sources are applied before every step between
+ * start and end (inclusive, optional).
+ *
+ *   density i j radius amount [start [end]]
+ *   velocity i j radius vx vy [start [end]]
+ *   wall i0 j0 i1 j1
+ *   wind [start [end]]
+ *
+ * Without a script a single upward plume is emitted from the bottom center of the grid.
+ *
+ * -load starts from a saved Checkpoint instead of an empty grid, taking n, dt and iterations
+ * from it. -save writes a Checkpoint after the last step.
+ *
+ * -record writes the fields of every -every'th step with a Recorder, -rgb also writes the density
+ * of those steps as n x n rgb24 video frames.
+ *
+ * -replay runs an InputLog written by the Renderer's e key instead of a script, applying every
+ * event before the same step it was applied before live, for the number of steps the log covers
+ * and without warmup. Grid size and solver settings come from the log.
+ *
+ * -strips sets the number of strips, and threads, of -solver strips. It defaults to the number of cores.
+ *
+ * -ensemble steps that many independent n x n simulations together on an Ensemble of -threads
+ * pool threads, all with the script's sources and walls, and reports the total simulation steps
+ * per second. Member k varies the parameters: timeStep is dt times 0.5, 0.75, 1, 1.25 or 1.5
+ * (k % 5), viscosity is 0.0001 times (k / 5) % 4, diff is 0.0001 times 1 + k % 3, and odd
+ * members get an extra wall across the plume at a height that depends on k. Members take the other
+ * solver flags, except that -solver redblack and strips fall back to gs. It can't be combined
+ * with -load, -save, -record or -replay.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+
+public class Headless {
+
+	int n = 80;
+	float timeStep = 0.2f;
+	int iterations = 10;
+	int steps = 1000;
+	int warmup = 100;
+	boolean metrics = false;
+
+	Recorder recorder;
+
+	//Number of simulations of -ensemble, 0 for a single Solver
+	int ensembleSize = 0;
+	int threads = Runtime.getRuntime().availableProcessors();
+	Ensemble ensemble;
+
+	//Events of -replay, the next one to apply and whether the jet stream blows
+	InputLog replay;
+	int nextEvent;
+	boolean wind;
+	//Density drawn as video frames for the Recorder, null without -rgb
+	int[] pixels;
+	Palette palette;
+
+	Solver solv = new Solver ();
+	ArrayList<Source> sources = new ArrayList<Source> ();
+	ArrayList<int[]> walls = new ArrayList<int[]> ();
+
+	public static void main (String[] args) throws IOException {
+
+		//No window is ever opened, this keeps AWT from looking for a display
+		System.setProperty("java.awt.headless", "true");
+
+		Headless run = new Headless ();
+		String script = null;
+		String load = null;
+		String save = null;
+		String record = null;
+		String rgb = null;
+		String replay = null;
+		int every = 1;
+		int encoding = Recorder.DELTA;
+
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.equals("-n")) {
+				run.n = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-dt")) {
+				run.timeStep = Float.parseFloat(args[++i]);
+			} else if (arg.equals("-iter")) {
+				run.iterations = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-steps")) {
+				run.steps = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-warmup")) {
+				run.warmup = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-script")) {
+				script = args[++i];
+			} else if (arg.equals("-solver")) {
+				run.solv.solverMode = parseMode(args[++i], new String[] {"gs", "redblack", "cg", "jacobi", "strips"});
+			} else if (arg.equals("-strips")) {
+				run.solv.strips.count = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-pressure")) {
+				run.solv.pressureMode = parseMode(args[++i], new String[] {"iterative", "multigrid", "spectral"});
+			} else if (arg.equals("-nofft")) {
+				run.solv.autoSpectral = false;
+			} else if (arg.equals("-nosparse")) {
+				run.solv.sparseDensity = false;
+			} else if (arg.equals("-nofuse")) {
+				run.solv.fusedVelocity = false;
+			} else if (arg.equals("-load")) {
+				load = args[++i];
+			} else if (arg.equals("-save")) {
+				save = args[++i];
+			} else if (arg.equals("-record")) {
+				record = args[++i];
+			} else if (arg.equals("-every")) {
+				every = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-encoding")) {
+				encoding = parseMode(args[++i], Recorder.ENCODINGS);
+			} else if (arg.equals("-rgb")) {
+				rgb = args[++i];
+			} else if (arg.equals("-replay")) {
+				replay = args[++i];
+			} else if (arg.equals("-ensemble")) {
+				run.ensembleSize = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-threads")) {
+				run.threads = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-metrics")) {
+				run.metrics = true;
+			} else if (arg.equals("-nowarm")) {
+				run.solv.warmStart = false;
+			} else if (arg.equals("-tol")) {
+				run.solv.tolerance = Float.parseFloat(args[++i]);
+			} else {
+				throw new IllegalArgumentException("Unknown argument " + arg);
+			}
+		}
+
+		if (run.ensembleSize > 0 && (load != null || save != null || record != null || replay != null)) {
+			throw new IllegalArgumentException("-ensemble can't be combined with -load, -save, -record or -replay");
+		}
+
+		run.setup ();
+		if (load != null) {
+			Checkpoint.read(new File(load)).restore(run.solv, new Particles ());
+			run.n = run.solv.n;
+			run.timeStep = run.solv.timeStep;
+			run.iterations = run.solv.iterations;
+		}
+
+		if (replay != null) {
+			run.replay = InputLog.read(new File(replay));
+			run.warmup = 0;
+			run.steps = run.replay.steps;
+		} else if (script != null) {
+			run.load (script);
+		} else {
+			run.sources.add(run.new Source ("density", run.n / 2, 5, 3, 5, 0, 0, Integer.MAX_VALUE));
+			run.sources.add(run.new Source ("velocity", run.n / 2, 5, 3, 0, 0.05f, 0, Integer.MAX_VALUE));
+		}
+
+		if (run.ensembleSize > 0) {
+			run.runEnsemble ();
+			return;
+		}
+
+		run.applyWalls (run.solv);
+
+		if (record != null) {
+			run.recorder = new Recorder (new File(record), rgb == null ? null : new File(rgb), 4);
+			run.recorder.every = every;
+			run.recorder.encoding = encoding;
+			if (rgb != null) {
+				run.pixels = new int[run.n * run.n];
+				run.palette = new Palette ();
+				run.palette.set(Palette.CLASSIC, 50, 70, 80);
+			}
+		}
+
+		run.run ();
+		run.solv.close();
+
+		if (run.replay != null) {
+			System.out.printf("replayed %d input events, %.1f s live%n", run.replay.events.size(), run.replay.millis / 1e3);
+		}
+
+		if (run.recorder != null) {
+			run.recorder.finish();
+			try {
+				run.recorder.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			Recorder r = run.recorder;
+			System.out.printf("recorded %d steps (%d dropped) and %d frames (%d dropped), %.1f MB encoded to %.1f MB%n",
+					r.recordedSteps, r.droppedSteps, r.recordedFrames, r.droppedFrames, r.rawBytes / 1e6, r.writtenBytes / 1e6);
+		}
+
+		if (save != null) {
+			long start = System.nanoTime();
+			Checkpoint checkpoint = new Checkpoint ().capture(run.solv, new Particles ());
+			long captured = System.nanoTime();
+			checkpoint.write(new File(save));
+			System.out.printf("checkpoint %s: %.2f ms copy, %.2f ms write%n", save, (captured - start) / 1e6, (System.nanoTime() - captured) / 1e6);
+		}
+	}
+
+	static int parseMode (String name, String[] names) {
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].equals(name)) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("Unknown mode " + name);
+	}
+
+	public void setup () {
+		solv.setup(n, timeStep, iterations);
+	}
+
+	//Reads sources and walls from a script file
+	public void load (String file) throws IOException {
+
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		String line;
+
+		while ((line = in.readLine()) != null) {
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+
+			String[] t = line.split("\\s+");
+			String type = t[0];
+
+			if (type.equals("wall")) {
+				walls.add(new int[] {Integer.parseInt(t[1]), Integer.parseInt(t[2]), Integer.parseInt(t[3]), Integer.parseInt(t[4])});
+			} else if (type.equals("wind")) {
+				sources.add(new Source (type, 0, 0, 0, 0, 0, optional(t, 1, 0), optional(t, 2, Integer.MAX_VALUE)));
+			} else if (type.equals("density")) {
+				sources.add(new Source (type, Integer.parseInt(t[1]), Integer.parseInt(t[2]), Integer.parseInt(t[3]),
+						Float.parseFloat(t[4]), 0, optional(t, 5, 0), optional(t, 6, Integer.MAX_VALUE)));
+			} else if (type.equals("velocity")) {
+				sources.add(new Source (type, Integer.parseInt(t[1]), Integer.parseInt(t[2]), Integer.parseInt(t[3]),
+						Float.parseFloat(t[4]), Float.parseFloat(t[5]), optional(t, 6, 0), optional(t, 7, Integer.MAX_VALUE)));
+			} else {
+				in.close();
+				throw new IllegalArgumentException("Unknown script command " + line);
+			}
+		}
+		in.close();
+	}
+
+	static int optional (String[] t, int index, int fallback) {
+		return index < t.length ? Integer.parseInt(t[index]) : fallback;
+	}
+
+	//Marks every wall line in drawBnd of solv, using the same clamping as the Renderer
+	public void applyWalls (Solver solv) {
+
+		for (int[] w : walls) {
+			int count = Math.max(Math.abs(w[2] - w[0]), Math.abs(w[3] - w[1])) + 1;
+			for (int k = 0; k < count; k++) {
+				float t = count == 1 ? 0 : k / (float) (count - 1);
+				int i = clamp(Math.round(w[0] + (w[2] - w[0]) * t), 2, n - 1);
+				int j = clamp(Math.round(w[1] + (w[3] - w[1]) * t), 2, n - 1);
+				solv.addWall(i, j);
+			}
+		}
+	}
+
+	int clamp (int x, int min, int max) {
+		return Math.max(min, Math.min(max, x));
+	}
+
+	//Steps the solver in a tight loop and reports the throughput
+	public void run () {
+
+		for (int step = 0; step < warmup; step++) {
+			step (step);
+		}
+
+		long start = System.nanoTime();
+		for (int step = warmup; step < warmup + steps; step++) {
+			step (step);
+		}
+		long elapsed = System.nanoTime() - start;
+
+		double seconds = elapsed / 1e9;
+		double total = 0;
+		for (int i = 1; i <= n; i++) {
+			for (int j = 1; j <= n; j++) {
+				total += solv.dens[solv.index(i, j)];
+			}
+		}
+
+		System.out.printf("n=%d dt=%.3f iterations=%d steps=%d%n", n, timeStep, iterations, steps);
+		System.out.printf("%.1f steps/sec, %.3f ms/step, %.2f ns/cell/step%n",
+				steps / seconds, elapsed / 1e6 / steps, (double) elapsed / steps / (n * n));
+		System.out.printf("total density %.6f%n", total);
+
+		//Per-phase times of the last Metrics.WINDOW steps, nested phases are included in the outer ones
+		if (metrics) {
+			double[] mean = solv.metrics.getMeanMillis();
+			double[] median = solv.metrics.getMedianMillis();
+			double[] p99 = solv.metrics.getP99Millis();
+			System.out.printf("%-10s %10s %10s %10s%n", "phase", "mean ms", "median ms", "p99 ms");
+			for (int phase = Metrics.ADD_SOURCE; phase <= Metrics.STEP; phase++) {
+				System.out.printf("%-10s %10.3f %10.3f %10.3f%n", Metrics.PHASES[phase], mean[phase], median[phase], p99[phase]);
+			}
+		}
+	}
+
+	//Applies the active sources and advances the solver by one timeStep
+	public void step (int step) {
+
+		//Events logged before step k since the log started are applied before step k here
+		if (replay != null) {
+			while (nextEvent < replay.events.size() && replay.events.get(nextEvent).step <= step) {
+				InputEvent event = replay.events.get(nextEvent++);
+				event.apply(solv);
+				wind = event.windAfter(wind);
+			}
+			n = solv.n;
+			timeStep = solv.timeStep;
+			iterations = solv.iterations;
+			if (wind) {
+				solv.addJetStream ();
+			}
+		}
+
+		applySources (solv, step);
+		solv.step ();
+
+		if (recorder != null) {
+			recorder.record(solv, step + 1);
+			if (pixels != null && (step + 1) % recorder.every == 0) {
+				if (pixels.length != n * n) {
+					pixels = new int[n * n];
+				}
+				for (int j = 1; j <= n; j++) {
+					for (int i = 1; i <= n; i++) {
+						pixels[(j - 1) * n + i - 1] = palette.densityColor(solv.dens[solv.index(i, j)]);
+					}
+				}
+				recorder.recordFrame(pixels, n, n);
+			}
+		}
+	}
+
+	//Applies the sources active at step to solv
+	void applySources (Solver solv, int step) {
+		for (Source s : sources) {
+			boolean active = step >= s.start && step <= s.end;
+
+			//Like the v key, wind also removes the right wall while it blows
+			if (s.type.equals("wind")) {
+				solv.openRight = active;
+			}
+			if (active) {
+				s.apply (solv);
+			}
+		}
+	}
+
+	//Builds the -ensemble members, steps them like run() steps the single Solver and reports the throughput
+	public void runEnsemble () {
+
+		ensemble = new Ensemble (threads);
+		for (int k = 0; k < ensembleSize; k++) {
+			Solver member = ensemble.member(ensemble.add(n, timeStep * (0.5f + 0.25f * (k % 5)), iterations, 0.0001f * ((k / 5) % 4), 0.0001f * (1 + k % 3)));
+			//The pool threads are already busy with other members, so solvers with threads of their own
+			//would only compete with them
+			boolean threaded = solv.solverMode == Solver.RED_BLACK || solv.solverMode == Solver.STRIPS;
+			member.solverMode = threaded ? Solver.GAUSS_SEIDEL : solv.solverMode;
+			member.pressureMode = solv.pressureMode;
+			member.autoSpectral = solv.autoSpectral;
+			member.sparseDensity = solv.sparseDensity;
+			member.fusedVelocity = solv.fusedVelocity;
+			member.warmStart = solv.warmStart;
+			member.tolerance = solv.tolerance;
+
+			applyWalls (member);
+			if (k % 2 == 1) {
+				int j = n / 4 + k % (n / 2);
+				for (int i = n / 3; i <= 2 * n / 3; i++) {
+					member.addWall(i, j);
+				}
+			}
+		}
+
+		for (int step = 0; step < warmup; step++) {
+			int s = step;
+			ensemble.step(k -> applySources (ensemble.member(k), s));
+		}
+
+		long start = System.nanoTime();
+		for (int step = warmup; step < warmup + steps; step++) {
+			int s = step;
+			ensemble.step(k -> applySources (ensemble.member(k), s));
+		}
+		long elapsed = System.nanoTime() - start;
+		ensemble.shutdown();
+
+		double seconds = elapsed / 1e9;
+		double total = 0;
+		for (int k = 0; k < ensembleSize; k++) {
+			Solver member = ensemble.member(k);
+			for (int i = 1; i <= n; i++) {
+				for (int j = 1; j <= n; j++) {
+					total += member.dens[member.index(i, j)];
+				}
+			}
+		}
+
+		System.out.printf("ensemble=%d threads=%d n=%d iterations=%d steps=%d%n", ensembleSize, threads, n, iterations, steps);
+		System.out.printf("%.1f simulation steps/sec, %.3f ms per ensemble step, %.2f ns/cell/step%n",
+				(double) ensembleSize * steps / seconds, elapsed / 1e6 / steps, (double) elapsed / steps / ensembleSize / (n * n));
+		System.out.printf("total density %.6f%n", total);
+	}
+
+	//A scripted density, velocity or wind source
+	class Source {
+
+		String type;
+		int i, j, radius;
+		float x, y;
+		int start, end;
+
+		Source (String type, int i, int j, int radius, float x, float y, int start, int end) {
+			this.type = type;
+			this.i = i;
+			this.j = j;
+			this.radius = radius;
+			this.x = x;
+			this.y = y;
+			this.start = start;
+			this.end = end;
+		}
+
+		void apply (Solver solv) {
+
+			if (type.equals("wind")) {
+				solv.addJetStream ();
+				return;
+			}
+
+			for (int a = 0; a < radius; a++) {
+				for (int b = 0; b < radius; b++) {
+					int si = clamp(i + a, 1, solv.n), sj = clamp(j + b, 1, solv.n);
+					if (type.equals("density")) {
+						solv.setDensitySource(si, sj, x);
+					} else {
+						solv.setVelocitySource(si, sj, x, y);
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,226 @@
+/*
+ * Incompressible 2D fluid simulation based on the work of Jos Stam.
+ *
+ * A single user input to the Solver, applied between two steps. Everything the Renderer's mouse,
+ * keys and sliders change in the Solver goes through one of these, so an InputLog of them replays
+ * a session exactly.
+ */
+
+import java.nio.ByteBuffer;
+
+public class InputEvent {
+
+	//Sources and walls cover the radius x radius cells from (i, j) up, like the Headless script commands
+	static final int DENSITY = 0;
+	static final int VELOCITY = 1;
+	static final int WALL = 2;
+	//Turns the jet stream on or off and opens or closes the right wall with it
+	static final int WIND = 3;
+	//Solver.setup, also turns the jet stream off and closes the right wall
+	static final int SETUP = 4;
+	static final int RESIZE = 5;
+	static final int TIMESTEP = 6;
+	static final int ITERATIONS = 7;
+	static final int SOLVER = 8;
+	static final int PRESSURE = 9;
+	static final int SPECTRAL = 10;
+	//Last event of a log, i is the number of steps the log covers
+	static final int END = 11;
+
+	//Size of the largest event write produces, the header and a VELOCITY event's 3 shorts and 2 floats.
+	//Events take 13 to 23 bytes.
+	static final int MAX_BYTES = 9 + 3 * 2 + 2 * 4;
+
+	int type;
+	//Grid cell and radius for sources and walls, n for SETUP and RESIZE, the value of the other integer settings
+	int i, j, radius;
+	//Amount or velocity of sources, timeStep of SETUP and TIMESTEP
+	float x, y;
+
+	//Steps since the log started when the event was applied and milliseconds since then, set by InputLog
+	int step;
+	int millis;
+
+	InputEvent (int type, int i, int j, int radius, float x, float y) {
+		this.type = type;
+		this.i = i;
+		this.j = j;
+		this.radius = radius;
+		this.x = x;
+		this.y = y;
+	}
+
+	public static InputEvent density (int i, int j, int radius, float amount) {
+		return new InputEvent (DENSITY, i, j, radius, amount, 0);
+	}
+
+	public static InputEvent velocity (int i, int j, int radius, float x, float y) {
+		return new InputEvent (VELOCITY, i, j, radius, x, y);
+	}
+
+	public static InputEvent wall (int i, int j, int radius) {
+		return new InputEvent (WALL, i, j, radius, 0, 0);
+	}
+
+	public static InputEvent wind (boolean on) {
+		return new InputEvent (WIND, on ? 1 : 0, 0, 0, 0, 0);
+	}
+
+	public static InputEvent setup (int n, float timeStep, int iterations) {
+		return new InputEvent (SETUP, n, iterations, 0, timeStep, 0);
+	}
+
+	public static InputEvent resize (int n) {
+		return new InputEvent (RESIZE, n, 0, 0, 0, 0);
+	}
+
+	public static InputEvent timeStep (float timeStep) {
+		return new InputEvent (TIMESTEP, 0, 0, 0, timeStep, 0);
+	}
+
+	public static InputEvent iterations (int iterations) {
+		return new InputEvent (ITERATIONS, iterations, 0, 0, 0, 0);
+	}
+
+	public static InputEvent solverMode (int mode) {
+		return new InputEvent (SOLVER, mode, 0, 0, 0, 0);
+	}
+
+	public static InputEvent pressureMode (int mode) {
+		return new InputEvent (PRESSURE, mode, 0, 0, 0, 0);
+	}
+
+	public static InputEvent autoSpectral (boolean on) {
+		return new InputEvent (SPECTRAL, on ? 1 : 0, 0, 0, 0, 0);
+	}
+
+	public static InputEvent end (int steps) {
+		return new InputEvent (END, steps, 0, 0, 0, 0);
+	}
+
+	//Changes solv, only call between steps
+	public void apply (Solver solv) {
+
+		switch (type) {
+		case DENSITY:
+			for (int a = 0; a < radius; a++) {
+				for (int b = 0; b < radius; b++) {
+					solv.setDensitySource(i + a, j + b, x);
+				}
+			}
+			break;
+		case VELOCITY:
+			for (int a = 0; a < radius; a++) {
+				for (int b = 0; b < radius; b++) {
+					solv.setVelocitySource(i + a, j + b, x, y);
+				}
+			}
+			break;
+		case WALL:
+			for (int a = 0; a < radius; a++) {
+				for (int b = 0; b < radius; b++) {
+					solv.addWall(i + a, j + b);
+				}
+			}
+			break;
+		case WIND:
+			solv.openRight = i != 0;
+			break;
+		case SETUP:
+			//setup keeps openRight, but the jet stream it belongs to is off afterwards
+			solv.setup(i, x, j);
+			solv.openRight = false;
+			break;
+		case RESIZE:
+			solv.resize(i);
+			break;
+		case TIMESTEP:
+			solv.timeStep = x;
+			break;
+		case ITERATIONS:
+			solv.iterations = i;
+			break;
+		case SOLVER:
+			solv.solverMode = i;
+			break;
+		case PRESSURE:
+			solv.pressureMode = i;
+			break;
+		case SPECTRAL:
+			solv.autoSpectral = i != 0;
+			break;
+		default:
+			throw new IllegalStateException("Unknown input event " + type);
+		}
+	}
+
+	//Whether the jet stream blows after this event, given whether it did before
+	public boolean windAfter (boolean wind) {
+		if (type == WIND) {
+			return i != 0;
+		}
+		return type == SETUP ? false : wind;
+	}
+
+	//Writes the event as byte type, int step, int millis and the fields its type uses
+	void write (ByteBuffer out) {
+
+		out.put((byte) type).putInt(step).putInt(millis);
+		switch (type) {
+		case DENSITY:
+		case VELOCITY:
+		case WALL:
+			out.putShort((short) i).putShort((short) j).putShort((short) radius);
+			if (type != WALL) {
+				out.putFloat(x);
+			}
+			if (type == VELOCITY) {
+				out.putFloat(y);
+			}
+			break;
+		case SETUP:
+			out.putInt(i).putInt(j).putFloat(x);
+			break;
+		case TIMESTEP:
+			out.putFloat(x);
+			break;
+		default:
+			out.putInt(i);
+		}
+	}
+
+	static InputEvent read (ByteBuffer in) {
+
+		int type = in.get();
+		int step = in.getInt(), millis = in.getInt();
+		InputEvent e = new InputEvent (type, 0, 0, 0, 0, 0);
+		switch (type) {
+		case DENSITY:
+		case VELOCITY:
+		case WALL:
+			e.i = in.getShort();
+			e.j = in.getShort();
+			e.radius = in.getShort();
+			if (type != WALL) {
+				e.x = in.getFloat();
+			}
+			if (type == VELOCITY) {
+				e.y = in.getFloat();
+			}
+			break;
+		case SETUP:
+			e.i = in.getInt();
+			e.j = in.getInt();
+			e.x = in.getFloat();
+			break;
+		case TIMESTEP:
+			e.x = in.getFloat();
+			break;
+		default:
+			e.i = in.getInt();
+		}
+		e.step = step;
+		e.millis = millis;
+		return e;
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * Incompressible 2D fluid simulation based on the work of Jos Stam.
+ *
+ * Compact binary log of InputEvents, each tagged with the step it was applied before, that can be
+ * replayed to reproduce a session step for step.
+ *
+ * File layout, little endian: int magic 'FLIN', int version, then one InputEvent after another
+ * (see InputEvent.write), ending with an END event.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+public class InputLog {
+
+	static final int MAGIC = 0x464c494e;
+	static final int VERSION = 1;
+
+	FileChannel channel;
+	ByteBuffer out = ByteBuffer.allocate(8192).order(ByteOrder.LITTLE_ENDIAN);
+	long startNanos;
+
+	//Events read from a log, without the END event, the number of steps it covers and how long it took
+	ArrayList<InputEvent> events = new ArrayList<InputEvent> ();
+	int steps;
+	int millis;
+
+	InputLog () {
+	}
+
+	//Starts a new log in file, event times are counted from now
+	public InputLog (File file) throws IOException {
+		channel = new RandomAccessFile(file, "rw").getChannel();
+		channel.truncate(0);
+		out.putInt(MAGIC).putInt(VERSION);
+		startNanos = System.nanoTime();
+	}
+
+	//Appends event, applied before the step'th step since the log started.
+		//Events are buffered and written a few kilobytes at a time.
+	public void write (int step, InputEvent event) throws IOException {
+		event.step = step;
+		event.millis = (int) ((System.nanoTime() - startNanos) / 1000000);
+		if (out.remaining() < InputEvent.MAX_BYTES) {
+			flush ();
+		}
+		event.write(out);
+	}
+
+	//Ends the log after steps steps and closes the file, which is closed even if writing fails
+	public void close (int steps) throws IOException {
+		try {
+			write (steps, InputEvent.end(steps));
+			flush ();
+		} finally {
+			channel.close();
+		}
+	}
+
+	void flush () throws IOException {
+		out.flip();
+		while (out.hasRemaining()) {
+			channel.write(out);
+		}
+		out.clear();
+	}
+
+	//Reads every event of a log into memory
+	public static InputLog read (File file) throws IOException {
+
+		ByteBuffer in;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		in.order(ByteOrder.LITTLE_ENDIAN);
+
+		if (in.remaining() < 8 || in.getInt() != MAGIC) {
+			throw new IOException(file + " is not an input log");
+		}
+		int version = in.getInt();
+		if (version != VERSION) {
+			throw new IOException(file + " has unsupported input log version " + version);
+		}
+
+		InputLog log = new InputLog ();
+		while (in.hasRemaining()) {
+			InputEvent e = InputEvent.read(in);
+			if (e.type == InputEvent.END) {
+				log.steps = e.i;
+				log.millis = e.millis;
+				return log;
+			}
+			log.events.add(e);
+		}
+		throw new IOException(file + " ends without an END event");
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * Incompressible 2D fluid simulation based on the work of Jos Stam.
+ *
+ * Timers for each phase of a simulation step, kept as a rolling window of recent samples.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import javax.management.ObjectName;
+
+public class Metrics implements MetricsMBean {
+
+	//Phases timed inside Solver.step, summed over every call during a step
+	static final int ADD_SOURCE = 0;
+	static final int DIFFUSE = 1;
+	static final int PROJECT = 2;
+	static final int ADVECT = 3;
+	static final int SET_BOUND = 4;
+	static final int STEP = 5;
+
+	//Phases recorded once per call by the simulation and render threads
+	static final int PARTICLES = 6;
+	static final int RENDER = 7;
+
+	static final String[] PHASES = {"addSource", "diffuse", "project", "advect", "setBound", "step", "particles", "render"};
+
+	//Number of samples kept per phase
+	static final int WINDOW = 256;
+
+	//Nested phases are counted in full by the outer one too, so setBound time is also part of
+	//diffuse, project and advect, and all solver phases are part of step
+	volatile boolean enabled = true;
+
+	//Time spent in each solver phase during the current step
+	long[] pending = new long[PHASES.length];
+
+	//samples[phase] is a ring buffer of the last WINDOW durations in nanoseconds.
+	//Each phase is only written by one thread, readers may see a sample being replaced.
+	long[][] samples = new long[PHASES.length][WINDOW];
+	long[] counts = new long[PHASES.length];
+
+	//Start time for stop, or 0 if timing is off
+	public long start () {
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	//Adds the time since start to a solver phase of the current step
+	public void stop (int phase, long start) {
+		if (start != 0) {
+			pending[phase] += System.nanoTime() - start;
+		}
+	}
+
+	//Records the time since start as one sample of phase
+	public void record (int phase, long start) {
+		if (start != 0) {
+			add (phase, System.nanoTime() - start);
+		}
+	}
+
+	//Moves the solver phase totals of the finished step into their windows
+	public void endStep () {
+		if (!enabled) {
+			return;
+		}
+		for (int phase = ADD_SOURCE; phase <= STEP; phase++) {
+			add (phase, pending[phase]);
+			pending[phase] = 0;
+		}
+	}
+
+	void add (int phase, long nanos) {
+		samples[phase][(int) (counts[phase] % WINDOW)] = nanos;
+		counts[phase]++;
+	}
+
+	//Sorted copy of the samples currently in the window of phase
+	long[] window (int phase) {
+		int count = (int) Math.min(counts[phase], WINDOW);
+		long[] sorted = Arrays.copyOf(samples[phase], count);
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	//Sample at quantile q (0 to 1) of every phase in milliseconds, or the mean if q is negative
+	double[] quantile (double q) {
+		double[] result = new double[PHASES.length];
+		for (int phase = 0; phase < PHASES.length; phase++) {
+			long[] sorted = window (phase);
+			if (sorted.length == 0) {
+				continue;
+			}
+			if (q < 0) {
+				long sum = 0;
+				for (long s : sorted) {
+					sum += s;
+				}
+				result[phase] = sum / 1e6 / sorted.length;
+			} else {
+				result[phase] = sorted[(int) Math.min(sorted.length - 1, q * sorted.length)] / 1e6;
+			}
+		}
+		return result;
+	}
+
+	//Registers this object with the platform MBean server as fluid:type=Metrics
+	public void register () {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("fluid:type=Metrics"));
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public String[] getPhases () {
+		return PHASES.clone();
+	}
+
+	@Override
+	public double[] getMeanMillis () {
+		return quantile (-1);
+	}
+
+	@Override
+	public double[] getMedianMillis () {
+		return quantile (0.5);
+	}
+
+	@Override
+	public double[] getP99Millis () {
+		return quantile (0.99);
+	}
+
+	@Override
+	public double[] getMaxMillis () {
+		return quantile (1);
+	}
+
+	@Override
+	public long getSteps () {
+		return counts[STEP];
+	}
+
+	@Override
+	public boolean isEnabled () {
+		return enabled;
+	}
+
+	@Override
+	public void setEnabled (boolean enabled) {
+		this.enabled = enabled;
+	}
+}
@@ -0,0 +1,24 @@
+/*
+ * Incompressible 2D fluid simulation based on the work of Jos Stam.
+ *
+ * JMX view of Metrics, every array has one entry per phase in the order of getPhases.
+ */
+
+public interface MetricsMBean {
+
+	String[] getPhases ();
+
+	double[] getMeanMillis ();
+
+	double[] getMedianMillis ();
+
+	double[] getP99Millis ();
+
+	double[] getMaxMillis ();
+
+	long getSteps ();
+
+	boolean isEnabled ();
+
+	void setEnabled (boolean enabled);
+}
@@ -0,0 +1,379 @@
+/*
+ * Incompressible 2D fluid simulation based on the work of Jos Stam.
+ *
+ * Geometric multigrid solver for the pressure Poisson equation used by Solver.project.
+ *
+ * References:
+ *
+ * William L. Briggs, Van Emden Henson, Steve F. McCormick, "A Multigrid Tutorial", Second Edition, SIAM, 2000.
+ * Ulrich Trottenberg, Cornelius Oosterlee, Anton Schuller, "Multigrid", Academic Press, 2001.
+ */
+
+import java.util.Arrays;
+
+public class Multigrid {
+
+	//Solver whose setBound and drawBnd define the finest level
+	Solver solv;
+
+	//Interior size, flat arrays and masks of every level. Level 0 is the solver's own grid.
+		//u stores the solution (or the correction on coarse levels)
+		//f stores the right hand side
+		//r stores the residual f - Au
+		//fixed marks cells whose value is forced by a wall, these are never relaxed
+		//diag stores the diagonal of the operator, 4 minus the number of fixed neighbors
+	int levels;
+	int[] ns, sizes;
+	float[][] u, f, r, diag;
+	boolean[][] fixed;
+	
+	//The pressure equation is only defined up to a constant. setBound mirrors every cell around
+	//a wall instead of pinning it, so this holds with walls too. The part of the residual that is
+	//constant across the grid can never be removed, so it is subtracted before measuring and
+	//restricting the residual.
+	boolean singular = true;
+
+	int preSmooth = 2;
+	int postSmooth = 2;
+	int coarseSmooth = 30;
+	int coarsestN = 4;
+
+	int maxCycles = 20;
+	float tolerance = 1e-3f;
+
+	//Statistics from the last call to solve
+	int lastCycles;
+	float lastResidual;
+
+	public Multigrid (Solver s) {
+		solv = s;
+	}
+
+	//Allocates the level hierarchy for an n x n grid
+		//Every level halves the interior size (rounding up) until it is coarsestN or smaller,
+		//so the total amount of memory and work per V-cycle is bounded by 4/3 of the finest level.
+	public void setup (int n) {
+
+		levels = 1;
+		for (int m = n; m > coarsestN; m = (m + 1) / 2) {
+			levels++;
+		}
+
+		ns = new int[levels];
+		sizes = new int[levels];
+		u = new float[levels][];
+		f = new float[levels][];
+		r = new float[levels][];
+		fixed = new boolean[levels][];
+		diag = new float[levels][];
+
+		ns[0] = n;
+		for (int l = 0; l < levels; l++) {
+			if (l > 0) {
+				ns[l] = (ns[l - 1] + 1) / 2;
+			}
+			sizes[l] = ns[l] + 2;
+
+			//Level 0 borrows the solver's arrays for u and f in solve
+			if (l > 0) {
+				u[l] = new float[sizes[l] * sizes[l]];
+				f[l] = new float[sizes[l] * sizes[l]];
+			}
+			r[l] = new float[sizes[l] * sizes[l]];
+			fixed[l] = new boolean[sizes[l] * sizes[l]];
+			diag[l] = new float[sizes[l] * sizes[l]];
+		}
+	}
+
+	//Solves 4p - (sum of the 4 neighbors of p) = div for p using V-cycles.
+		//p is used as the initial guess. Cycling stops once the largest residual drops below
+		//tolerance times the largest value of div, or after maxCycles cycles.
+	public void solve (float[] p, float[] div) {
+
+		if (ns == null || ns[0] != solv.n) {
+			setup (solv.n);
+		}
+
+		u[0] = p;
+		f[0] = div;
+
+		updateMasks ();
+
+		float target = tolerance * maxAbs (0, div);
+
+		lastCycles = 0;
+		lastResidual = residual (0);
+
+		while (lastCycles < maxCycles && lastResidual > target) {
+			vCycle (0);
+			lastResidual = residual (0);
+			lastCycles++;
+		}
+
+		u[0] = null;
+		f[0] = null;
+	}
+
+	//Marks wall cells on every level.
+		//On the finest level a cell is fixed if it, or one of its 4 neighbors, is a user-drawn wall,
+		//since setBound overwrites exactly those cells. A coarse cell is fixed only if all of its children
+		//are, so thin walls don't swallow the fluid cells next to them on coarse levels.
+		//setBound mirrors values across walls, so on coarse levels fixed neighbors are dropped from
+		//the stencil instead of being treated as zero, which keeps the coarse problem consistent with
+		//the finest one. The finest level keeps the plain 5 point stencil with the mirrored values.
+	void updateMasks () {
+
+		int n = ns[0], s = sizes[0];
+		boolean[] mask = fixed[0];
+		float[] bnd = solv.drawBnd;
+
+		for (int i = 1; i <= n; i++) {
+			for (int j = 1; j <= n; j++) {
+				int k = i * s + j;
+				mask[k] = bnd[k] != 0 || bnd[k - s] != 0 || bnd[k + s] != 0 || bnd[k - 1] != 0 || bnd[k + 1] != 0;
+			}
+		}
+
+		for (int l = 1; l < levels; l++) {
+			int nc = ns[l], sc = sizes[l], nf = ns[l - 1], sf = sizes[l - 1];
+			boolean[] coarse = fixed[l], fine = fixed[l - 1];
+
+			for (int i = 1; i <= nc; i++) {
+				for (int j = 1; j <= nc; j++) {
+					boolean all = true;
+					for (int fi = 2 * i - 1; fi <= Math.min(2 * i, nf); fi++) {
+						for (int fj = 2 * j - 1; fj <= Math.min(2 * j, nf); fj++) {
+							all &= fine[fi * sf + fj];
+						}
+					}
+					coarse[i * sc + j] = all;
+				}
+			}
+		}
+
+		Arrays.fill(diag[0], 4f);
+
+		for (int l = 1; l < levels; l++) {
+			int nc = ns[l], sc = sizes[l];
+			boolean[] coarse = fixed[l];
+			float[] d = diag[l];
+
+			for (int i = 1; i <= nc; i++) {
+				for (int j = 1; j <= nc; j++) {
+					int k = i * sc + j;
+					d[k] = 4;
+					d[k] -= coarse[k - sc] ? 1 : 0;
+					d[k] -= coarse[k + sc] ? 1 : 0;
+					d[k] -= coarse[k - 1] ? 1 : 0;
+					d[k] -= coarse[k + 1] ? 1 : 0;
+				}
+			}
+
+			//Cells enclosed by walls on all 4 sides are cut off from the fluid
+			for (int i = 1; i <= nc; i++) {
+				for (int j = 1; j <= nc; j++) {
+					if (d[i * sc + j] == 0) {
+						coarse[i * sc + j] = true;
+					}
+				}
+			}
+		}
+	}
+
+	//Recursive V-cycle starting at level l
+	void vCycle (int l) {
+
+		if (l == levels - 1) {
+			smooth (l, coarseSmooth);
+			return;
+		}
+
+		smooth (l, preSmooth);
+		residual (l);
+		restrict (l);
+
+		Arrays.fill(u[l + 1], 0f);
+		vCycle (l + 1);
+
+		prolong (l);
+		smooth (l, postSmooth);
+	}
+
+	//Gauss-Seidel relaxation of level l, skipping fixed cells
+	void smooth (int l, int sweeps) {
+
+		int n = ns[l], s = sizes[l];
+		float[] x = u[l], b = f[l], d = diag[l];
+		boolean[] mask = fixed[l];
+
+		for (int sweep = 0; sweep < sweeps; sweep++) {
+			for (int i = 1; i <= n; i++) {
+				int row = i * s;
+				for (int j = 1; j <= n; j++) {
+					int k = row + j;
+					if (!mask[k]) {
+						x[k] = (x[k - s] + x[k + s] + x[k - 1] + x[k + 1] + b[k]) / d[k];
+					}
+				}
+			}
+			setBound (l);
+		}
+	}
+
+	//Enforces boundaries on level l
+		//The finest level uses the solver's own setBound so walls behave exactly like the
+		//Gauss-Seidel pressure solve. Coarse levels copy edge values into the ghost cells
+		//and hold the correction at 0 inside walls so they drop out of the stencil.
+	void setBound (int l) {
+
+		if (l == 0) {
+			solv.setBound (0, u[0]);
+			return;
+		}
+
+		int n = ns[l], s = sizes[l];
+		float[] x = u[l];
+		boolean[] mask = fixed[l];
+
+		for (int i = 1; i <= n; i++) {
+			x[i] = x[s + i];
+			x[(n + 1) * s + i] = x[n * s + i];
+			x[i * s] = x[i * s + 1];
+			x[i * s + n + 1] = x[i * s + n];
+
+			for (int j = 1; j <= n; j++) {
+				if (mask[i * s + j]) {
+					x[i * s + j] = 0;
+				}
+			}
+		}
+
+		x[0] = 0.5f * (x[s] + x[1]);
+		x[n + 1] = 0.5f * (x[s + n + 1] + x[n]);
+		x[(n + 1) * s] = 0.5f * (x[n * s] + x[(n + 1) * s + 1]);
+		x[(n + 1) * s + n + 1] = 0.5f * (x[n * s + n + 1] + x[(n + 1) * s + n]);
+	}
+
+	//Stores f - Au of level l in r[l] and returns its largest magnitude
+	float residual (int l) {
+
+		int n = ns[l], s = sizes[l];
+		float[] x = u[l], b = f[l], res = r[l], d = diag[l];
+		boolean[] mask = fixed[l];
+		float max = 0;
+		double sum = 0;
+		int count = 0;
+
+		for (int i = 1; i <= n; i++) {
+			int row = i * s;
+			for (int j = 1; j <= n; j++) {
+				int k = row + j;
+				if (mask[k]) {
+					res[k] = 0;
+				} else {
+					res[k] = b[k] - (d[k] * x[k] - x[k - s] - x[k + s] - x[k - 1] - x[k + 1]);
+					sum += res[k];
+					count++;
+				}
+			}
+		}
+
+		//Averaged over the free cells only, like restrict, so the residual really ends up with zero mean
+		float mean = singular && count > 0 ? (float) (sum / count) : 0;
+
+		for (int i = 1; i <= n; i++) {
+			int row = i * s;
+			for (int j = 1; j <= n; j++) {
+				int k = row + j;
+				if (!mask[k]) {
+					res[k] -= mean;
+					max = Math.max(max, Math.abs(res[k]));
+				}
+			}
+		}
+		return max;
+	}
+
+	//Restricts the residual of level l onto the right hand side of level l + 1.
+		//Coarse cells have twice the spacing, so the h^2 scaled right hand side is
+		//4 times the average, i.e. the sum of the children.
+	void restrict (int l) {
+
+		int nc = ns[l + 1], sc = sizes[l + 1], nf = ns[l], sf = sizes[l];
+		float[] coarse = f[l + 1], fine = r[l];
+		boolean[] mask = fixed[l + 1];
+		double total = 0;
+		int count = 0;
+
+		for (int i = 1; i <= nc; i++) {
+			for (int j = 1; j <= nc; j++) {
+				float sum = 0;
+				for (int fi = 2 * i - 1; fi <= Math.min(2 * i, nf); fi++) {
+					for (int fj = 2 * j - 1; fj <= Math.min(2 * j, nf); fj++) {
+						sum += fine[fi * sf + fj];
+					}
+				}
+				coarse[i * sc + j] = mask[i * sc + j] ? 0 : sum;
+				total += coarse[i * sc + j];
+				count += mask[i * sc + j] ? 0 : 1;
+			}
+		}
+
+		//Residuals of free fine cells inside fixed coarse cells are dropped above, so the
+		//coarse right hand side is shifted back to a zero sum to keep it solvable
+		if (singular && count > 0) {
+			float mean = (float) (total / count);
+			for (int i = 1; i <= nc; i++) {
+				for (int j = 1; j <= nc; j++) {
+					if (!mask[i * sc + j]) {
+						coarse[i * sc + j] -= mean;
+					}
+				}
+			}
+		}
+	}
+
+	//Adds the bilinearly interpolated correction of level l + 1 to level l.
+		//Each fine cell takes 9/16 of its parent, 3/16 of the two coarse cells beside it
+		//and 1/16 of the diagonal one, which is the cell centered bilinear stencil.
+	void prolong (int l) {
+
+		int nf = ns[l], sf = sizes[l], sc = sizes[l + 1];
+		float[] fine = u[l], coarse = u[l + 1];
+		boolean[] mask = fixed[l];
+
+		for (int i = 1; i <= nf; i++) {
+			int ci = (i + 1) / 2;
+			int ni = (i & 1) == 1 ? ci - 1 : ci + 1;
+
+			for (int j = 1; j <= nf; j++) {
+				int k = i * sf + j;
+				if (mask[k]) {
+					continue;
+				}
+
+				int cj = (j + 1) / 2;
+				int nj = (j & 1) == 1 ? cj - 1 : cj + 1;
+
+				fine[k] += 0.5625f * coarse[ci * sc + cj]
+						 + 0.1875f * (coarse[ni * sc + cj] + coarse[ci * sc + nj])
+						 + 0.0625f * coarse[ni * sc + nj];
+			}
+		}
+		setBound (l);
+	}
+
+	//Largest magnitude of an interior value on level l
+	float maxAbs (int l, float[] x) {
+
+		int n = ns[l], s = sizes[l];
+		float max = 0;
+
+		for (int i = 1; i <= n; i++) {
+			for (int j = 1; j <= n; j++) {
+				max = Math.max(max, Math.abs(x[i * s + j]));
+			}
+		}
+		return max;
+	}
+}
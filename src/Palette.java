@@ -0,0 +1,96 @@
+/*
+ * Incompressible 2D fluid simulation based on the work of Jos Stam.
+ *
+ * Lookup tables from density and particle speed to packed 0xRRGGBB colours.
+ */
+
+public class Palette {
+
+	static final int CLASSIC = 0;
+	static final int VIRIDIS = 1;
+	static final int HEAT = 2;
+
+	static final String[] NAMES = {"classic", "viridis", "heat"};
+
+	//Evenly spaced colour stops of each palette, linearly interpolated in between.
+		//CLASSIC has none, it keeps the original grey density and pow curves for particles.
+	static final int[][] STOPS = {
+		null,
+		{0x440154, 0x482878, 0x3e4a89, 0x31688e, 0x26828e, 0x1f9e89, 0x35b779, 0x6dcd59, 0xfde725},
+		{0x000000, 0x800000, 0xff2000, 0xff8000, 0xffd000, 0xffff80, 0xffffff},
+	};
+
+	//Number of particle speed levels
+	static final int SPEED_LEVELS = 1024;
+
+	int palette = -1;
+	float densColorScale;
+	float partColorScale;
+	float minPartColor;
+
+	//Colour of density d is density[min(255, d * densColorScale)]
+	int[] density = new int[256];
+
+	//Colour of a particle moving s pixels per step is speed[min(SPEED_LEVELS - 1, s * speedScale)]
+	int[] speed = new int[SPEED_LEVELS];
+	float speedScale;
+
+	//Rebuilds the tables if the palette or any of the scale constants differ from the last call
+	public void set (int palette, float densColorScale, float partColorScale, float minPartColor) {
+
+		if (palette == this.palette && densColorScale == this.densColorScale
+				&& partColorScale == this.partColorScale && minPartColor == this.minPartColor) {
+			return;
+		}
+		this.palette = palette;
+		this.densColorScale = densColorScale;
+		this.partColorScale = partColorScale;
+		this.minPartColor = minPartColor;
+
+		for (int i = 0; i < 256; i++) {
+			density[i] = palette == CLASSIC ? Raster.rgb(i, i, i) : sample(STOPS[palette], i / 255f);
+		}
+
+		//Particles past the speed where every classic channel reaches 255 all get the last entry
+		float range = 255 - minPartColor;
+		float maxColor = range <= 0 ? 1 : (float) Math.max(Math.pow(range, 1 / 0.9), Math.max(Math.pow(range, 1 / 0.75), Math.pow(range, 1 / 1.3)));
+		float maxSpeed = maxColor / partColorScale;
+		speedScale = (SPEED_LEVELS - 1) / maxSpeed;
+
+		for (int i = 0; i < SPEED_LEVELS; i++) {
+			float t = i / (float) (SPEED_LEVELS - 1);
+			if (palette == CLASSIC) {
+				float partColor = t * maxColor;
+				speed[i] = Raster.rgb(channel(Math.pow(partColor, 0.9)), channel(Math.pow(partColor, 0.75)), channel(Math.pow(partColor, 1.3)));
+			} else {
+				speed[i] = sample(STOPS[palette], t);
+			}
+		}
+	}
+
+	int channel (double value) {
+		return (int) Math.max(0, Math.min(255, value + minPartColor));
+	}
+
+	//Colour at t between 0 and 1 along the stops
+	static int sample (int[] stops, float t) {
+		float pos = t * (stops.length - 1);
+		int k = Math.min((int) pos, stops.length - 2);
+		float f = pos - k;
+		int a = stops[k], b = stops[k + 1];
+		int r = Math.round(((a >> 16) & 255) * (1 - f) + ((b >> 16) & 255) * f);
+		int g = Math.round(((a >> 8) & 255) * (1 - f) + ((b >> 8) & 255) * f);
+		int bl = Math.round((a & 255) * (1 - f) + (b & 255) * f);
+		return Raster.rgb(r, g, bl);
+	}
+
+	public int densityColor (float dens) {
+		int i = (int) (dens * densColorScale);
+		return density[i > 255 ? 255 : i];
+	}
+
+	public int speedColor (float s) {
+		int i = (int) (s * speedScale);
+		return speed[i >= SPEED_LEVELS ? SPEED_LEVELS - 1 : i];
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * Incompressible 2D fluid simulation based on the work of Jos Stam.
+ *
+ * Massless particles carried by the Solver's velocity field, kept in window pixel coordinates.
+ */
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+public class Particles {
+
+	//New and old x,y coordinates of particle i are x[i], y[i], xOld[i], yOld[i].
+		//The arrays only ever grow, count is the number of particles in use.
+	float[] x = new float[0], y = new float[0];
+	float[] xOld = new float[0], yOld = new float[0];
+	int count;
+
+	public int size () {
+		return count;
+	}
+
+	//Randomly places count particles inside a width x height window
+	public void reset (int count, int width, int height, Random rand) {
+		this.count = 0;
+		resize (count, width, height, rand);
+	}
+
+	//Changes the number of particles, keeping the ones that remain and placing new ones randomly
+	public void resize (int count, int width, int height, Random rand) {
+
+		reserve (count);
+
+		for (int i = this.count; i < count; i++) {
+			x[i] = xOld[i] = rand.nextInt(width);
+			y[i] = yOld[i] = rand.nextInt(height);
+		}
+		this.count = count;
+	}
+
+	//Makes room for count particles without changing the ones in use
+	public void reserve (int count) {
+		if (x.length < count) {
+			x = grow (x, count);
+			y = grow (y, count);
+			xOld = grow (xOld, count);
+			yOld = grow (yOld, count);
+		}
+	}
+
+	//Copy of array with room for at least capacity elements, grown by half so repeated resizes stay cheap
+	static float[] grow (float[] array, int capacity) {
+		float[] bigger = new float[Math.max(capacity, array.length + array.length / 2)];
+		System.arraycopy(array, 0, bigger, 0, array.length);
+		return bigger;
+	}
+
+	//Number of chunks per worker thread used by the parallel update, and the smallest chunk
+		//worth handing to another thread
+	int chunksPerThread = 4;
+	int minChunk = 2048;
+
+	//Moves every particle by the velocity of the grid cell it's in
+		//cellSizeX, cellSizeY are the size of a grid cell in pixels
+		//scaleX, scaleY map particle coordinates to pixels of the current window size
+		//maxX, maxY are the largest allowed particle coordinates
+		//moveScale converts velocity * timeStep into pixels
+		//Particles only read the velocity grid, so they are split into contiguous chunks that
+		//run on the common ForkJoin pool.
+	public void update (Solver solv, float cellSizeX, float cellSizeY, float scaleX, float scaleY, float maxX, float maxY, float moveScale) {
+
+		int chunks = Math.min((count + minChunk - 1) / minChunk, ForkJoinPool.getCommonPoolParallelism() * chunksPerThread);
+
+		if (chunks <= 1) {
+			advect (solv, cellSizeX, cellSizeY, scaleX, scaleY, maxX, maxY, moveScale, 0, count);
+			return;
+		}
+
+		int perChunk = (count + chunks - 1) / chunks;
+		IntStream.range(0, chunks).parallel().forEach(chunk -> {
+			int start = chunk * perChunk;
+			int end = Math.min(count, start + perChunk);
+			advect (solv, cellSizeX, cellSizeY, scaleX, scaleY, maxX, maxY, moveScale, start, end);
+		});
+	}
+
+	//Moves particles start to end - 1, keeping no state outside their own array slots
+	void advect (Solver solv, float cellSizeX, float cellSizeY, float scaleX, float scaleY, float maxX, float maxY, float moveScale, int start, int end) {
+
+		int n = solv.n, size = solv.size;
+		float move = solv.timeStep * moveScale;
+		float[] Xvelo = solv.Xvelo, Yvelo = solv.Yvelo;
+		float[] x = this.x, y = this.y, xOld = this.xOld, yOld = this.yOld;
+
+		for (int i = start; i < end; i++) {
+
+			xOld[i] = x[i];
+			yOld[i] = y[i];
+
+			//Getting the current array index of the particle from its pixel coordinates
+			int xIndex = clampIndex ((int) (x[i] * scaleX / cellSizeX), n) + 1;
+			int yIndex = clampIndex ((int) (y[i] * scaleY / cellSizeY), n) + 1;
+			int cell = xIndex * size + yIndex;
+
+			//Calculating particle velocity based on the velocity of the array cell it's in
+			float px = x[i] + Xvelo[cell] * move;
+			float py = y[i] + Yvelo[cell] * move;
+
+			//Keeping particles inside domain
+			if (px > maxX) {
+				px = maxX;
+			} else if (px < 0) {
+				px = 0;
+			}
+
+			if (py > maxY) {
+				py = maxY;
+			} else if (py < 0) {
+				py = 0;
+			}
+
+			x[i] = px;
+			y[i] = py;
+		}
+	}
+
+	//Clamps a cell index to the interior of the grid
+	static int clampIndex (int index, int n) {
+		if (index > n) {
+			return n;
+		} else if (index < 1) {
+			return 1;
+		}
+		return index;
+	}
+}
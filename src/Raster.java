@@ -0,0 +1,84 @@
+/*
+ * Incompressible 2D fluid simulation based on the work of Jos Stam.
+ *
+ * Off-screen image the Renderer draws into pixel by pixel before copying it to the screen once per frame.
+ */
+
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+public class Raster {
+
+	int width, height;
+	BufferedImage image;
+
+	//Pixels of image, row major, packed as 0xRRGGBB
+	int[] pixels;
+
+	//Makes sure the image is width x height, reallocating only when the size changed
+	public void resize (int width, int height) {
+		width = Math.max(1, width);
+		height = Math.max(1, height);
+		if (image != null && this.width == width && this.height == height) {
+			return;
+		}
+		this.width = width;
+		this.height = height;
+		image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+	}
+
+	public void clear (int rgb) {
+		Arrays.fill(pixels, 0, width * height, rgb);
+	}
+
+	//Fills the w x h rectangle with top left corner x,y, clipped to the image
+	public void fillRect (int x, int y, int w, int h, int rgb) {
+		int x0 = Math.max(0, x), x1 = Math.min(width, x + w);
+		int y0 = Math.max(0, y), y1 = Math.min(height, y + h);
+		for (int py = y0; py < y1; py++) {
+			int row = py * width;
+			for (int px = x0; px < x1; px++) {
+				pixels[row + px] = rgb;
+			}
+		}
+	}
+
+	//Draws a one pixel wide line from x0,y0 to x1,y1 (Bresenham), pixels outside the image are skipped
+	public void line (int x0, int y0, int x1, int y1, int rgb) {
+
+		int dx = Math.abs(x1 - x0), sx = x0 < x1 ? 1 : -1;
+		int dy = -Math.abs(y1 - y0), sy = y0 < y1 ? 1 : -1;
+		int err = dx + dy;
+
+		while (true) {
+			if (x0 >= 0 && x0 < width && y0 >= 0 && y0 < height) {
+				pixels[y0 * width + x0] = rgb;
+			}
+			if (x0 == x1 && y0 == y1) {
+				return;
+			}
+			int e2 = 2 * err;
+			if (e2 >= dy) {
+				err += dy;
+				x0 += sx;
+			}
+			if (e2 <= dx) {
+				err += dx;
+				y0 += sy;
+			}
+		}
+	}
+
+	//Copies the image to g with its top left corner at 0,0
+	public void blit (Graphics g) {
+		g.drawImage(image, 0, 0, null);
+	}
+
+	//Packs 0-255 colour channels into 0xRRGGBB
+	static int rgb (int r, int g, int b) {
+		return (r << 16) | (g << 8) | b;
+	}
+}
@@ -0,0 +1,436 @@
+/*
+ * Incompressible 2D fluid simulation based on the work of Jos Stam.
+ *
+ * Records dens, Xvelo and Yvelo of every Nth step, and optionally rendered frames, to disk
+ * on a background thread.
+ *
+ * The simulation thread only copies the fields into one of a fixed number of pooled buffers and
+ * queues it, the writer thread compresses and writes it and hands the buffer back. When every
+ * buffer is still waiting to be written the step is dropped instead of stalling the simulation.
+ *
+ * Field file layout, little endian:
+ *
+ *   int magic 'FLRC', int version
+ *   one chunk per recorded step:
+ *     int step, int n
+ *     for each of dens, Xvelo, Yvelo: int encoding, int byte count, data
+ *
+ * Data is (n + 2)^2 floats for RAW. ZERO_RUNS and DELTA store the raw bits of each float, DELTA
+ * xor'ed with the same field of the previous chunk, as repeated (int zeros, int count, count words)
+ * runs. ZERO_RUNS words are ints, DELTA words are packed in groups of four: a byte with the length
+ * minus one of each in two bits, then their 1 to 4 low bytes. A field falls back to RAW when that
+ * would be smaller.
+ *
+ * The video file is headerless rgb24 of a fixed size, for example
+ *   ffmpeg -f rawvideo -pix_fmt rgb24 -s 700x700 -r 60 -i fluid.rgb fluid.mp4
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+
+public class Recorder {
+
+	static final int MAGIC = 0x464c5243;
+	static final int VERSION = 1;
+
+	static final int RAW = 0;
+	static final int ZERO_RUNS = 1;
+	static final int DELTA = 2;
+
+	static final String[] ENCODINGS = {"raw", "zero", "delta"};
+
+	//Record every Nth step
+	int every = 1;
+	int encoding = DELTA;
+
+	//Steps and frames that were recorded or dropped because the writer was behind.
+		//Steps are counted on the simulation thread, frames on the thread that draws them.
+	volatile long recordedSteps, droppedSteps, recordedFrames, droppedFrames;
+	//Size of the recorded fields without and with encoding
+	volatile long rawBytes, writtenBytes;
+
+	//Buffers waiting to be filled and waiting to be written. full has room for every buffer and the end marker.
+	ArrayBlockingQueue<Slot> freeFields, freeFrames, full;
+	static final Slot END = new Slot ();
+
+	FileChannel fields, video;
+	int videoWidth, videoHeight;
+	Thread writer;
+
+	//Writer thread state: last written fields for DELTA and the output buffers
+	float[][] previous = new float[3][];
+	int previousN;
+	ByteBuffer out = ByteBuffer.allocateDirect(0), pixelsOut = ByteBuffer.allocateDirect(0);
+	float[] zeros = new float[0];
+
+	//A pooled copy of one step's fields or one rendered frame
+	static class Slot {
+		long step;
+		int n;
+		float[][] data = new float[3][];
+		int[] pixels = new int[0];
+		int width, height;
+	}
+
+	//Starts recording fields to fieldFile and, if videoFile isn't null, frames to videoFile.
+		//buffers is the number of steps and the number of frames that can wait for the writer.
+	public Recorder (File fieldFile, File videoFile, int buffers) throws IOException {
+
+		freeFields = new ArrayBlockingQueue<Slot> (buffers);
+		freeFrames = new ArrayBlockingQueue<Slot> (buffers);
+		full = new ArrayBlockingQueue<Slot> (2 * buffers + 1);
+		for (int i = 0; i < buffers; i++) {
+			freeFields.add(new Slot ());
+			freeFrames.add(new Slot ());
+		}
+
+		fields = new RandomAccessFile(fieldFile, "rw").getChannel();
+		fields.truncate(0);
+		ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC).putInt(VERSION).flip();
+		write (fields, header);
+
+		if (videoFile != null) {
+			video = new RandomAccessFile(videoFile, "rw").getChannel();
+			video.truncate(0);
+		}
+
+		writer = new Thread (this::write, "Recorder");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	//Queues a copy of the fields of solv if step is one to record, only call between steps
+	public void record (Solver solv, long step) {
+
+		if (step % every != 0) {
+			return;
+		}
+		Slot slot = freeFields.poll();
+		if (slot == null) {
+			droppedSteps++;
+			return;
+		}
+
+		int cells = solv.size * solv.size;
+		slot.step = step;
+		slot.n = solv.n;
+		copy (solv.dens, slot, 0, cells);
+		copy (solv.Xvelo, slot, 1, cells);
+		copy (solv.Yvelo, slot, 2, cells);
+		full.add(slot);
+		recordedSteps++;
+	}
+
+	static void copy (float[] from, Slot slot, int field, int cells) {
+		if (slot.data[field] == null || slot.data[field].length != cells) {
+			slot.data[field] = new float[cells];
+		}
+		System.arraycopy(from, 0, slot.data[field], 0, cells);
+	}
+
+	//Queues a copy of width x height 0xRRGGBB pixels.
+		//The video size is fixed by the first frame, frames of other sizes are dropped.
+	public void recordFrame (int[] pixels, int width, int height) {
+
+		if (video == null) {
+			return;
+		}
+		if (videoWidth == 0) {
+			videoWidth = width;
+			videoHeight = height;
+		}
+		Slot slot = width == videoWidth && height == videoHeight ? freeFrames.poll() : null;
+		if (slot == null) {
+			droppedFrames++;
+			return;
+		}
+
+		if (slot.pixels.length != width * height) {
+			slot.pixels = new int[width * height];
+		}
+		System.arraycopy(pixels, 0, slot.pixels, 0, width * height);
+		slot.width = width;
+		slot.height = height;
+		full.add(slot);
+		recordedFrames++;
+	}
+
+	//Stops recording after everything queued so far is written, without waiting for it
+	public void finish () {
+		full.add(END);
+	}
+
+	//Waits until the writer has written everything and closed the files
+	public void await () throws InterruptedException {
+		writer.join();
+	}
+
+	void write () {
+
+		try {
+			while (true) {
+				Slot slot = full.take();
+				if (slot == END) {
+					break;
+				}
+				try {
+					if (slot.width > 0) {
+						writeFrame (slot);
+						freeFrames.add(slot);
+					} else {
+						writeFields (slot);
+						freeFields.add(slot);
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		try {
+			fields.close();
+			if (video != null) {
+				video.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	void writeFields (Slot slot) throws IOException {
+
+		int cells = (slot.n + 2) * (slot.n + 2);
+		int capacity = 8 + 3 * (24 + 5 * cells);
+		if (out.capacity() < capacity) {
+			out = ByteBuffer.allocateDirect(capacity).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		if (zeros.length < cells) {
+			zeros = new float[cells];
+		}
+
+		//DELTA needs the previous chunk at the same size
+		boolean delta = encoding == DELTA && previousN == slot.n;
+
+		out.clear();
+		out.putInt((int) slot.step).putInt(slot.n);
+		for (int f = 0; f < 3; f++) {
+			if (encoding == RAW) {
+				putRaw (slot.data[f], cells);
+			} else {
+				putRuns (slot.data[f], delta ? previous[f] : zeros, cells, delta ? DELTA : ZERO_RUNS);
+			}
+		}
+		out.flip();
+		rawBytes += 8 + 3 * (8 + 4L * cells);
+		writtenBytes += out.remaining();
+		write (fields, out);
+
+		//The slot gets the old previous arrays back, which have the same size unless n changed
+		float[][] data = slot.data;
+		slot.data = previous;
+		previous = data;
+		previousN = slot.n;
+	}
+
+	void putRaw (float[] x, int cells) {
+		out.putInt(RAW).putInt(4 * cells);
+		for (int k = 0; k < cells; k++) {
+			out.putFloat(x[k]);
+		}
+	}
+
+	//Writes x ^ base as runs of zero words followed by nonzero words.
+		//A run of nonzero words only ends at two zeros in a row, so single zeros don't cost 8 bytes.
+	void putRuns (float[] x, float[] base, int cells, int encoding) {
+
+		int start = out.position();
+		out.putInt(encoding).putInt(0);
+		int limit = start + 8 + 4 * cells;
+
+		int k = 0;
+		while (k < cells) {
+			int zerosStart = k;
+			while (k < cells && word (x, base, k) == 0) {
+				k++;
+			}
+			int literalStart = k;
+			while (k < cells && (word (x, base, k) != 0 || (k + 1 < cells && word (x, base, k + 1) != 0))) {
+				k++;
+			}
+
+			out.putInt(literalStart - zerosStart).putInt(k - literalStart);
+			if (encoding == DELTA) {
+				putPacked (x, base, literalStart, k);
+			} else {
+				for (int l = literalStart; l < k; l++) {
+					out.putInt(word (x, base, l));
+				}
+			}
+
+			//out has room for 5 bytes per cell and a few run headers, so this is only checked after each run
+			if (out.position() > limit) {
+				out.position(start);
+				putRaw (x, cells);
+				return;
+			}
+		}
+		out.putInt(start + 4, out.position() - start - 8);
+	}
+
+	//Writes the words from start to end - 1 in groups of four, a tag byte holding the number of bytes
+		//minus one of each word followed by their low bytes. Bits that changed since the last step are
+		//mostly in the lower three bytes, so this saves about a quarter.
+	void putPacked (float[] x, float[] base, int start, int end) {
+		for (int l = start; l < end; l += 4) {
+			int tagPosition = out.position();
+			int tag = 0;
+			out.put((byte) 0);
+			for (int m = 0; m < 4 && l + m < end; m++) {
+				int w = word (x, base, l + m);
+				int bytes = Math.max(1, (39 - Integer.numberOfLeadingZeros(w)) / 8);
+				tag |= (bytes - 1) << (2 * m);
+				for (int b = 0; b < bytes; b++) {
+					out.put((byte) (w >>> (8 * b)));
+				}
+			}
+			out.put(tagPosition, (byte) tag);
+		}
+	}
+
+	static int word (float[] x, float[] base, int k) {
+		return Float.floatToRawIntBits(x[k]) ^ Float.floatToRawIntBits(base[k]);
+	}
+
+	void writeFrame (Slot slot) throws IOException {
+
+		int count = slot.width * slot.height;
+		if (pixelsOut.capacity() < 3 * count) {
+			pixelsOut = ByteBuffer.allocateDirect(3 * count);
+		}
+		pixelsOut.clear();
+		int[] pixels = slot.pixels;
+		for (int k = 0; k < count; k++) {
+			int rgb = pixels[k];
+			pixelsOut.put((byte) (rgb >> 16)).put((byte) (rgb >> 8)).put((byte) rgb);
+		}
+		pixelsOut.flip();
+		write (video, pixelsOut);
+	}
+
+	static void write (FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	//Reads the chunks of a field file back one at a time
+	public static class Playback {
+
+		FileChannel channel;
+		ByteBuffer in = ByteBuffer.allocate(0).order(ByteOrder.LITTLE_ENDIAN);
+
+		long step;
+		int n;
+		float[][] data = new float[3][];
+
+		public Playback (File file) throws IOException {
+			channel = new RandomAccessFile(file, "r").getChannel();
+			if (!fill (8) || in.getInt() != MAGIC) {
+				throw new IOException(file + " is not a recording");
+			}
+			int version = in.getInt();
+			if (version != VERSION) {
+				throw new IOException(file + " has unsupported recording version " + version);
+			}
+		}
+
+		//Reads the next chunk into step, n and data, returns false at the end of the file
+		public boolean next () throws IOException {
+
+			if (!fill (8)) {
+				channel.close();
+				return false;
+			}
+			step = in.getInt();
+			int n = in.getInt();
+			int cells = (n + 2) * (n + 2);
+
+			for (int f = 0; f < 3; f++) {
+				if (!fill (8)) {
+					throw new IOException("Truncated recording");
+				}
+				int encoding = in.getInt();
+				int bytes = in.getInt();
+				if (!fill (bytes)) {
+					throw new IOException("Truncated recording");
+				}
+
+				//A DELTA chunk always follows one of the same size, so data[f] holds the base
+				float[] x = data[f];
+				if (x == null || x.length != cells) {
+					x = data[f] = new float[cells];
+				}
+				if (encoding == RAW) {
+					in.asFloatBuffer().get(x);
+					in.position(in.position() + bytes);
+					continue;
+				}
+
+				int end = in.position() + bytes;
+				int k = 0;
+				while (in.position() < end) {
+					int zeros = in.getInt(), count = in.getInt();
+					if (encoding == ZERO_RUNS) {
+						Arrays.fill(x, k, k + zeros, 0);
+					}
+					k += zeros;
+					if (encoding == DELTA) {
+						for (int l = 0; l < count; l += 4) {
+							int tag = in.get() & 255;
+							for (int m = 0; m < 4 && l + m < count; m++, k++) {
+								int length = ((tag >> (2 * m)) & 3) + 1, bits = 0;
+								for (int b = 0; b < length; b++) {
+									bits |= (in.get() & 255) << (8 * b);
+								}
+								x[k] = Float.intBitsToFloat(bits ^ Float.floatToRawIntBits(x[k]));
+							}
+						}
+					} else {
+						for (int l = 0; l < count; l++, k++) {
+							x[k] = Float.intBitsToFloat(in.getInt());
+						}
+					}
+				}
+				if (encoding == ZERO_RUNS) {
+					Arrays.fill(x, k, cells, 0);
+				}
+			}
+			this.n = n;
+			return true;
+		}
+
+		//Makes the next bytes of the file available in in, returns false at the end of the file
+			//Every read is used up before the next one, so nothing has to be kept
+		boolean fill (int bytes) throws IOException {
+			if (in.capacity() < bytes) {
+				in = ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+			}
+			in.clear();
+			in.limit(bytes);
+			while (in.hasRemaining() && channel.read(in) >= 0) {
+			}
+			boolean complete = !in.hasRemaining();
+			in.flip();
+			return complete;
+		}
+	}
+}
@@ -21,7 +21,9 @@ import javax.swing.event.ChangeListener;
 import java.util.Random;
 import java.util.ArrayList;
 import java.util.Hashtable;
-import java.awt.BasicStroke;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.io.File;
+import java.io.IOException;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
@@ -40,35 +42,49 @@ public class Renderer extends JPanel implements MouseListener, MouseMotionListen
  static JFrame frame;
  static Container c;
  
- Particle part;
  static JLabel label;
  Thread renderThread;
+ Simulation sim;
+ Frame shown;
+ Raster raster = new Raster ();
+ 
+ //Checkpoint file used by the s and o keys, and the copy being written to it
+ static File checkpointFile = new File("fluid.checkpoint");
+ Checkpoint checkpoint = new Checkpoint ();
+ AtomicBoolean checkpointBusy = new AtomicBoolean ();
+ 
+ //Recording started with the k key, fields go to recordFile and drawn frames to videoFile
+ static File recordFile = new File("fluid.rec");
+ static File videoFile = new File("fluid.rgb");
+ Recorder recorder;
+ long recordedFrameStep;
+ 
+ //Input log started and stopped with the e key
+ static File inputLogFile = new File("fluid.input");
+ Palette palette = new Palette ();
+ int paletteMode = Palette.CLASSIC;
  
  float cellSizeX, cellSizeY;
  int xPos, yPos, xVect, yVect;
+ int cell;
  int offset = 1;
  
- boolean wind = false;
  boolean drawDens = false;
  boolean drawVectors = false;
  boolean drawParticles = true;
+ boolean drawMetrics = false;
  
  int size;
  long time1, time2;
  int xNow, yNow, xPrev, yPrev;
- int xPartIndex, yPartIndex;
- float xPartTemp, yPartTemp;
  float xPartVel, yPartVel;
- int pRed, pGreen, pBlue;
  int xIndexNow, yIndexNow;
  int xIndexOld, yIndexOld;
  int xIndexMid, yIndexMid;
  float xMidTemp, yMidTemp;
  float fps;
- int halfN;
+ long frameTime;
  int button;
- int densColor;
- float partColor;
  
  int densColorOffset = 60;
  int minPartColor = 80;
@@ -91,10 +107,13 @@ public class Renderer extends JPanel implements MouseListener, MouseMotionListen
  static float timeStep = 0.2f;
  static int iterations = 10;
  
- int particleSize = 1;
  static int particleCount = 20000;
  static float particleMoveScale = 1100;
  
+ //Target simulation steps and frames drawn per second
+ static int simRate = 60;
+ static int renderRate = 60;
+ 
  int currentWidth;
  int currentHeight;
  int currentGridWidth;
@@ -116,10 +135,14 @@ public class Renderer extends JPanel implements MouseListener, MouseMotionListen
  static int mouseVectorSlideMax = 20;
  static int partMoveSlideMin = 500;
  static int partMoveSlideMax = 3000;
+ static int simRateSlideMin = 1;
+ static int simRateSlideMax = 240;
+ static int renderRateSlideMin = 1;
+ static int renderRateSlideMax = 240;
  
  static float mouseVectorScale = 0.05f;
  
- ArrayList<Particle> particles;
+ Particles particles = new Particles ();
  Random rand = new Random ();
  
  static ArrayList<JSlider> sliders = new ArrayList <JSlider>();
@@ -129,6 +152,8 @@ public class Renderer extends JPanel implements MouseListener, MouseMotionListen
  JSlider timeSlide;
  JSlider mouseVectorSlide;
  JSlider partMoveSlide;
+ JSlider simRateSlide;
+ JSlider renderRateSlide;
  
  static ArrayList<String> labels = new ArrayList <String>();
  static ArrayList<String> help = new ArrayList <String>();
@@ -143,6 +168,8 @@ public class Renderer extends JPanel implements MouseListener, MouseMotionListen
   labels.add("TimeStep");
   labels.add("Mouse Force Multiplier");
   labels.add("Particle Motion Multiplier");
+  labels.add("Simulation Steps per Second");
+  labels.add("Frames per Second");
   
   //Adding help messages to arraylist for easy iteration
   help.add("Left click and drag to move fluid");
@@ -157,6 +184,18 @@ public class Renderer extends JPanel implements MouseListener, MouseMotionListen
   help.add("Press 1 to toggle density rendering");
   help.add("Press 2 to toggle velocity vector rendering");
   help.add("Press 3 to toggle particle rendering");
+  help.add("Press l to cycle color palettes");
+  help.add("Press i to toggle per-phase timings");
+  help.add("Press s to save and o to load a checkpoint");
+  help.add("Press k to start or stop recording");
+  help.add("Press e to reset and log input, again to stop");
+  help.add(" ");
+  help.add("Press p to toggle the parallel red-black solver");
+  help.add("Press c to toggle the conjugate gradient solver");
+  help.add("Press j to toggle the vectorizable Jacobi solver");
+  help.add("Press d to toggle the domain decomposed strip solver");
+  help.add("Press m to toggle the multigrid pressure solver");
+  help.add("Press f to toggle the FFT solver when there are no walls");
   
   //Setting up frame
   rend = new Renderer ();
@@ -177,6 +216,8 @@ public class Renderer extends JPanel implements MouseListener, MouseMotionListen
   sliders.add(rend.timeSlide = new JSlider (JSlider.HORIZONTAL, timeSlideMin, timeSlideMax, (int)(timeStep*100)));
   sliders.add(rend.mouseVectorSlide = new JSlider (JSlider.HORIZONTAL, mouseVectorSlideMin, mouseVectorSlideMax, (int)(mouseVectorScale*100)));
   sliders.add(rend.partMoveSlide = new JSlider (JSlider.HORIZONTAL, partMoveSlideMin, partMoveSlideMax, (int)particleMoveScale));
+  sliders.add(rend.simRateSlide = new JSlider (JSlider.HORIZONTAL, simRateSlideMin, simRateSlideMax, simRate));
+  sliders.add(rend.renderRateSlide = new JSlider (JSlider.HORIZONTAL, renderRateSlideMin, renderRateSlideMax, renderRate));
 
   //For each slider, add it to the settings panel, add labels, and set border
   for (int i = 0; i < sliders.size(); i++) {
@@ -223,93 +264,182 @@ public class Renderer extends JPanel implements MouseListener, MouseMotionListen
  }
  
  //Initialize public variables and generate particles
+  //Only call from the simulation thread, or before it is started
  public void setup () {
-  solv.setup(n, timeStep, iterations);
+  sim.apply(InputEvent.setup(n, timeStep, iterations));
   size = n + 2;
-  halfN = n/2;
-  
-  wind = false;
   
   resetParticles ();
  }
  
- //Randomly generate Particle class objects and add them to arraylist for easy iteration
- public void resetParticles () {
-  particles = new ArrayList<Particle> ();
-  
-  for (int i = 0; i < particleCount; i++) {
-   particles.add(new Particle(rand.nextInt(width), rand.nextInt(height)));
+ //Changes the grid resolution to n, keeping the fluid, walls and particles
+  //Only call from the simulation thread
+ public void resize () {
+  sim.apply(InputEvent.resize(n));
+  size = n + 2;
+ }
+ 
+ //Copies the simulation between two steps and writes it to checkpointFile on another thread.
+  //Ignored while the previous checkpoint is still being written, since its arrays are reused.
+ public void saveCheckpoint () {
+  if (!checkpointBusy.compareAndSet(false, true)) {
+   return;
   }
+  sim.post(() -> {
+   checkpoint.capture(solv, particles);
+   Thread writer = new Thread (() -> {
+    try {
+     checkpoint.write(checkpointFile);
+    } catch (IOException e) {
+     e.printStackTrace();
+    }
+    checkpointBusy.set(false);
+   }, "Checkpoint writer");
+   writer.setDaemon(true);
+   writer.start();
+  });
  }
  
- //Add listeners, run setup method, and start renderThread
+ //Reads checkpointFile on another thread and replaces the simulation with it between two steps
+ public void loadCheckpoint () {
+  Thread reader = new Thread (() -> {
+   try {
+    Checkpoint loaded = Checkpoint.read(checkpointFile);
+    sim.post(() -> {
+     //A log can't replay across a loaded checkpoint, so it ends here
+     sim.closeLog();
+     loaded.restore(solv, particles);
+     n = loaded.n;
+     timeStep = loaded.timeStep;
+     iterations = loaded.iterations;
+     size = n + 2;
+     sim.wind = loaded.openRight;
+    });
+   } catch (IOException e) {
+    e.printStackTrace();
+   }
+  }, "Checkpoint reader");
+  reader.setDaemon(true);
+  reader.start();
+ }
+ 
+ //Starts recording to recordFile and videoFile, or stops the running recording.
+  //The simulation stops handing over steps first, the writer then finishes on its own.
+ public void toggleRecording () {
+  if (recorder == null) {
+   try {
+    recorder = new Recorder (recordFile, videoFile, 4);
+   } catch (IOException e) {
+    e.printStackTrace();
+    return;
+   }
+   sim.recorder = recorder;
+  } else {
+   Recorder stopped = recorder;
+   recorder = null;
+   sim.post(() -> {
+    sim.recorder = null;
+    stopped.finish();
+   });
+  }
+ }
+ 
+ //Resets the simulation and logs every input from then on to inputLogFile, or ends the running log.
+  //The log starts with the reset and the current solver modes, so Headless -replay can repeat it.
+ public void toggleInputLog () {
+  sim.post(() -> {
+   if (sim.inputLog != null) {
+    sim.closeLog();
+    return;
+   }
+   try {
+    sim.openLog(new InputLog (inputLogFile));
+   } catch (IOException e) {
+    e.printStackTrace();
+    return;
+   }
+   setup();
+   sim.apply(InputEvent.solverMode(solv.solverMode));
+   sim.apply(InputEvent.pressureMode(solv.pressureMode));
+   sim.apply(InputEvent.autoSpectral(solv.autoSpectral));
+  });
+ }
+ 
+ //Randomly generate particles across the window
+ public void resetParticles () {
+  particles.reset(particleCount, width, height, rand);
+ }
+ 
+ //Changes the particle count in place, new particles are placed randomly
+ public void resizeParticles () {
+  particles.resize(particleCount, width, height, rand);
+ }
+ 
+ //Add listeners, run setup method, and start the simulation and render threads
  public Renderer () {
   
   addMouseMotionListener(this);
   addMouseListener(this);
   addKeyListener(this);
   setFocusable(true);
+  
+  sim = new Simulation (solv, particles);
+  sim.rate = simRate;
+  sim.particleMoveScale = particleMoveScale;
+  sim.baseWidth = width;
+  sim.baseHeight = height;
   setup ();
+  solv.metrics.register();
+  sim.start ();
   
   renderThread = new renderThread ();
   renderThread.start ();
  }
  
  //Separate class needed to extend Thread without implementing Runnable
+  //Asks Swing for a repaint renderRate times per second, the Solver runs on sim
  class renderThread extends Thread {
   public void run () {
+   long next = System.nanoTime();
    while(Thread.currentThread() == renderThread) {
-    try {
-     Thread.sleep(0);
-    } catch (InterruptedException e) {
-     e.printStackTrace();
+    next += 1000000000L / renderRate;
+    long wait = next - System.nanoTime();
+    if (wait > 0) {
+     try {
+      Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+     } catch (InterruptedException e) {
+      e.printStackTrace();
+     }
+    } else {
+     next = System.nanoTime();
     }
     repaint ();
    }
   }  
  }
  
- //Particle class, stores new and old x,y coordinates
- class Particle {
-  
-  float x, y;
-  float xOld, yOld;
-  
-  Particle (float x, float y) {
-   this.x = x;
-   this.y = y;
-  }
- }
- 
- //Used to create jetStream
- public void addVel () {
-  for (int i = -2; i < 2; i++) {
-   for(int j = -2; j < 2; j++)
-    solv.Xvelo2[5 + i][halfN + j] = 0.1f;
-  }
- }
- 
  //Paint method, called every frame
  public void paintComponent (Graphics g) {
   
-  //Storing current system time to calculate frame rate later
-  time1 = System.nanoTime();
+  long timer = solv.metrics.start();
   
   //Calling super.paintComponent(g) to auto clear the frame every time repaint() is called
   super.paintComponent(g);
   
-  Graphics2D g2 = (Graphics2D) g.create();
-  
-  if (wind == true) {
-   addVel ();
+  //The simulation thread steps the Solver, here we only draw the newest Frame it published
+  shown = sim.frames.latest();
+  if (shown.step == 0) {
+   return;
   }
+  int n = shown.n;
   
-  //Calling step method in Solver class to move simulation forward 1 timeStep
-  solv.step ();
+  Graphics2D g2 = (Graphics2D) g.create();
   
   //Calculating various dimensions to use while rendering cells and resizing the window
   currentWidth = rend.getWidth();
   currentHeight = rend.getHeight();
+  sim.viewWidth = currentWidth;
+  sim.viewHeight = currentHeight;
   
   cellSizeX = (float) currentWidth / n;
   cellSizeY = (float) currentHeight / n;
@@ -320,166 +450,110 @@ public class Renderer extends JPanel implements MouseListener, MouseMotionListen
   windowScaleX = (float) currentGridWidth / width;
   windowScaleY = (float) currentGridHeight / height;
   
+  //Everything except the text is drawn straight into the pixels of raster, then copied to the screen once
+  raster.resize(currentWidth, currentHeight);
+  raster.clear(0);
+  palette.set(paletteMode, densColorScale, partColorScale, minPartColor);
+  
   //Loop through each cell of the grid
    //xPos and yPos are the coordinates of the center pixel of each cell
   for (int i = 1; i <= n; i += offset) {
    xPos = (int) ((i - 0.5f) * cellSizeX);
    for (int j = 1; j <= n; j += offset) {
     yPos = (int) ((j - 0.5f) * cellSizeY);
+    cell = shown.index(i, j);
     //If density drawing is enabled and the cell has some density
-    if (drawDens == true && solv.dens[i][j] > 0.00001) {
-     //Calculate color of cell based on its density value
-     densColor = (int) (solv.dens[i][j] * densColorScale);
-
-     //Prevents IllegalArgumentException
-     if (densColor > 255) {
-      densColor = 255;
-     }
-     
-     //Set color and draw cell
-     g2.setColor(new Color(densColor, densColor, densColor));
-     g2.setStroke(new BasicStroke(0));
-     g2.fillRect((int)(xPos - cellSizeX/2), (int)(yPos - cellSizeY/2), (int)cellSizeX, (int)cellSizeY);
+    if (drawDens == true && shown.dens[cell] > 0.00001) {
+     //Color of cell based on its density value, then draw cell
+     raster.fillRect((int)(xPos - cellSizeX/2), (int)(yPos - cellSizeY/2), (int)cellSizeX, (int)cellSizeY, palette.densityColor(shown.dens[cell]));
     }
     
     //Drawing user-defined boundaries
     //The current cell or any of its 4 neighbors are marked as a boundary, fill this cell with white
-    if (solv.drawBnd[i][j] == 1 || solv.drawBnd[i-1][j] == 1 || solv.drawBnd[i+1][j] == 1 || solv.drawBnd[i][j-1] == 1 || solv.drawBnd[i][j+1] == 1) {
-     g2.setColor(Color.white);
-     g2.fillRect ((int)(xPos - cellSizeX/2), (int)(yPos - cellSizeY/2), (int)cellSizeX, (int)cellSizeY);
+    if (shown.drawBnd[cell] == 1 || shown.drawBnd[cell - shown.size] == 1 || shown.drawBnd[cell + shown.size] == 1 || shown.drawBnd[cell - 1] == 1 || shown.drawBnd[cell + 1] == 1) {
+     raster.fillRect((int)(xPos - cellSizeX/2), (int)(yPos - cellSizeY/2), (int)cellSizeX, (int)cellSizeY, 0xffffff);
     }
     
     //Calculating velocity vectors
-    g2.setColor(Color.red);
     if (drawVectors == true ) {
-     xVect = (int)(vectorDrawScale * solv.Xvelo[i][j]);
-     yVect = (int)(vectorDrawScale * solv.Yvelo[i][j]);
+     xVect = (int)(vectorDrawScale * shown.Xvelo[cell]);
+     yVect = (int)(vectorDrawScale * shown.Yvelo[cell]);
      
      //Only draw vector if its magnitude is greater than vectorDrawThreshold
      if(Math.sqrt(xVect * xVect + yVect * yVect) > vectorDrawThreshhold) {
-      g2.drawLine(xPos, yPos, xPos + xVect, yPos + yVect);
+      raster.line(xPos, yPos, xPos + xVect, yPos + yVect, 0xff0000);
      }
     }
    }
   }
   
-  //For each particle in particles arraylist
-  for (int i = 0; i < particles.size(); i++) {
+  //For each particle
+  for (int i = 0; i < shown.particleCount; i++) {
    
    //If particleDrawing is enabled
    if (drawParticles == true) {
-    //Setting public Particle object part equal to the current Particle object
-    //This allows me to manipulate 'part' instead of 'particles.get(i)'
-    part = particles.get(i);
-    
-    part.xOld = part.x;
-    part.yOld = part.y;
-    
-    //Caching part variables
-    xPartTemp = part.x;
-    yPartTemp = part.y;
-    
-    //Getting the current array index of the particle from its pixel coordinates
-    xPartIndex = xIndex ((float)part.x * windowScaleX) + 1;
-    yPartIndex = yIndex ((float)part.y * windowScaleY) + 1;
-    
-    //Calculating particle velocity based on the velocity of the array cell it's in
-    xPartTemp += solv.Xvelo[xPartIndex][yPartIndex] * timeStep * particleMoveScale;
-    yPartTemp += solv.Yvelo[xPartIndex][yPartIndex] * timeStep * particleMoveScale;
-    
-    //Keeping particles inside domain
-    if (xPartTemp > currentGridWidth / windowScaleX) {
-     xPartTemp = currentGridWidth / windowScaleX;
-    } else if (xPartTemp < 0) {
-     xPartTemp = 0;
-    }
-    
-    if (yPartTemp > currentGridHeight / windowScaleY) {
-     yPartTemp = currentGridHeight / windowScaleY;
-    } else if (yPartTemp < 0) {
-     yPartTemp = 0;
-    }
-    
-    //Updating particle position
-    part.x = xPartTemp;
-    part.y = yPartTemp;
     
     //Calculating change in particle x,y values
     //Since timeStep is irrelevant here, we can say that displacement = velocity
-    xPartVel = Math.abs(part.x - part.xOld);
-    yPartVel = Math.abs(part.y - part.yOld);
+    xPartVel = Math.abs(shown.x[i] - shown.xOld[i]);
+    yPartVel = Math.abs(shown.y[i] - shown.yOld[i]);
     
-    //partColor = magnitude of the displacement/velocity vectors
-    partColor = (float) (Math.sqrt(xPartVel * xPartVel + yPartVel * yPartVel) * partColorScale);
+    //Color based on the magnitude of the displacement/velocity vector
+    int partRGB = palette.speedColor((float) Math.sqrt(xPartVel * xPartVel + yPartVel * yPartVel));
     
-    //Setting color of each channel based on a function of partColor (velocity/displacement magnitude)
-    pRed  = (int) (Math.pow(partColor, 0.9) + minPartColor);
-    pGreen  = (int) (Math.pow(partColor, 0.75) + minPartColor);
-    pBlue  = (int) (Math.pow(partColor, 1.3) + minPartColor);
-    
-    //Prevents IllegalArgumentException
-    if (pRed > 255){
-     pRed = 255;
-    } else if (pRed < 0){
-     pRed = 0;
-    }
-    if (pGreen > 255){
-     pGreen = 255;
-    } else if (pGreen < 0){
-     pGreen = 0;
-    }
-    if (pBlue > 255){
-     pBlue = 255;
-    } else if (pBlue < 0){
-     pBlue = 0;
-    }
-    
-    //Setting color and drawing line between new particle position and old particle position to simulate motion blur
-    g2.setColor(new Color(pRed, pGreen, pBlue));
-    
-    g2.setStroke(new BasicStroke(particleSize));
-    g2.drawLine((int) (part.x * windowScaleX), (int) (part.y * windowScaleY), (int) (part.xOld * windowScaleX), (int) (part.yOld * windowScaleY));
-    //g2.drawLine((int) (part.x), (int) (part.y), (int) (part.xOld), (int) (part.yOld)); //deprecated
+    //Drawing line between new particle position and old particle position to simulate motion blur
+    raster.line((int) (shown.x[i] * windowScaleX), (int) (shown.y[i] * windowScaleY), (int) (shown.xOld[i] * windowScaleX), (int) (shown.yOld[i] * windowScaleY), partRGB);
    }
   }
   
-  //Calculating fps (frames per second) and drawing it to the screen
-  time2 = System.nanoTime() - time1;
-  fps = 1 / (time2 / 1000000000f);
+  //Every newly published step is also recorded as a video frame
+  if (recorder != null && shown.step != recordedFrameStep) {
+   recorder.recordFrame(raster.pixels, raster.width, raster.height);
+   recordedFrameStep = shown.step;
+  }
+  
+  raster.blit(g2);
+  
+  //Calculating fps (frames drawn per second) from the time between frames, smoothed over a few frames,
+  //and drawing it to the screen along with the steps per second of the simulation thread
+  time1 = System.nanoTime();
+  if (time2 > 0) {
+   frameTime = frameTime == 0 ? time1 - time2 : (frameTime * 7 + (time1 - time2)) / 8;
+   fps = 1 / (frameTime / 1000000000f);
+  }
+  time2 = time1;
   g2.setColor(Color.yellow);
   g2.setFont(new Font("Ariel", Font.PLAIN, 25));
   g2.drawString("FPS: " + String.valueOf((int)fps), 35, 50);
-  
- }
- 
- //Calculates the xIndex of a pixel
- public int xIndex (float x) {
-  xIndexNow = (int) (x / cellSizeX);
-  
-  if (xIndexNow > n) {
-   xIndexNow = n;
-  } else if (xIndexNow < 1) {
-   xIndexNow = 1;
+  g2.drawString("Steps/s: " + String.valueOf((int)sim.measuredRate), 35, 80);
+  if (recorder != null) {
+   g2.setColor(Color.red);
+   g2.drawString("REC", currentWidth - 90, 50);
+   g2.setColor(Color.yellow);
   }
   
-  return xIndexNow;
- }
- 
- //Calculates the yIndex of a pixel
- public int yIndex (float y) {
-  yIndexNow = (int) (y / cellSizeY);
-  
-  if (yIndexNow > n) {
-   yIndexNow = n;
-  } else if (yIndexNow < 1) {
-   yIndexNow = 1;
+  //Mean and 99th percentile time of each phase over the last Metrics.WINDOW samples
+  if (drawMetrics == true) {
+   double[] mean = solv.metrics.getMeanMillis();
+   double[] p99 = solv.metrics.getP99Millis();
+   g2.setFont(new Font("Monospaced", Font.PLAIN, 14));
+   for (int i = 0; i < Metrics.PHASES.length; i++) {
+    g2.drawString(String.format("%-10s %7.3f ms  p99 %7.3f ms", Metrics.PHASES[i], mean[i], p99[i]), 35, 110 + 18 * i);
+   }
   }
   
-  return yIndexNow;
+  solv.metrics.record(Metrics.RENDER, timer);
+  
  }
  
  //Interprets and interpolates user mouse input
- public void mouseSolve (MouseEvent e) {
+  //Runs on the simulation thread, so the mouse positions are passed in rather than read from the fields
+ public void mouseSolve (int button, boolean dragged, int xPrev, int yPrev, int xNow, int yNow) {
+  
+  //Cell size of the grid the Solver has now, which may be newer than the Frame last drawn
+  int n = solv.n;
+  float cellSizeX = (float) getWidth() / n;
+  float cellSizeY = (float) getHeight() / n;
   
   //Calculates array index of current and previous mouse positions
   xIndexNow = (int) (xNow / cellSizeX);
@@ -510,44 +584,48 @@ public class Renderer extends JPanel implements MouseListener, MouseMotionListen
    yIndexOld = 1;
   }
   
+  //Midpoints often land on the same cell as the one before, those are skipped so the
+   //input log only gets one event per cell. Walls and sources are set, not added, so it
+   //makes no difference to the fluid.
+  int xLast = -1, yLast = -1;
+  
   //if right click, draw boundaries
   if (button == 3) {
    //MouseDragged event fires slowly, thus we must interpolate mouse motion
    //to prevent gaps in boundary if user moves mouse quickly.
    for (int i = 0; i < drawMidPoints; i++) {
     
-    //Drawing boundaries using a radius
-    //Allows for drawing of thicker boundaries if desired
-    for (int j = 0; j < drawBndRadius; j++) {
-     for (int k = 0; k < drawBndRadius; k++) {
-      //Calculating current midpoint index
-      xMidTemp = xIndexOld + ((xIndexNow - xIndexOld) / (float) drawMidPoints) * i;
-      yMidTemp = yIndexOld + ((yIndexNow - yIndexOld) / (float) drawMidPoints) * i;
+    //Calculating current midpoint index
+    xMidTemp = xIndexOld + ((xIndexNow - xIndexOld) / (float) drawMidPoints) * i;
+    yMidTemp = yIndexOld + ((yIndexNow - yIndexOld) / (float) drawMidPoints) * i;
     
-      xIndexMid = (int) xMidTemp + 1;
-      yIndexMid = (int) yMidTemp + 1;
-      
-      //Preventing arrayIndexOutOfBounds exception
-      if (xIndexMid >= n) {
-       xIndexMid = n - 1;
-      } else if (xIndexMid < 1) {
-       xIndexMid = 1;
-      }
-      if (yIndexMid >= n) {
-       yIndexMid = n - 1;
-      } else if (yIndexMid < 1) {
-       yIndexMid = 1;
-      }
+    xIndexMid = (int) xMidTemp + 1;
+    yIndexMid = (int) yMidTemp + 1;
     
-      //Marking the current index as a boundary
-      solv.drawBnd[xIndexMid + j][yIndexMid + k] = 1;
-     }
-    }    
+    //Preventing arrayIndexOutOfBounds exception
+    if (xIndexMid >= n) {
+     xIndexMid = n - 1;
+    } else if (xIndexMid < 1) {
+     xIndexMid = 1;
+    }
+    if (yIndexMid >= n) {
+     yIndexMid = n - 1;
+    } else if (yIndexMid < 1) {
+     yIndexMid = 1;
+    }
+    
+    //Marking the cells within drawBndRadius of the midpoint as a boundary
+    //Allows for drawing of thicker boundaries if desired
+    if (xIndexMid != xLast || yIndexMid != yLast) {
+     sim.apply(InputEvent.wall(xIndexMid, yIndexMid, drawBndRadius));
+     xLast = xIndexMid;
+     yLast = yIndexMid;
+    }
    }
   }
   
   //If right click and dragged, add density and velocity to fluid
-  if (button == 1 && e.getID() == MouseEvent.MOUSE_DRAGGED) {
+  if (button == 1 && dragged) {
 
    //Calculating change in x and y mouse positions
    deltaX = xNow - xPrev;
@@ -582,20 +660,17 @@ public class Renderer extends JPanel implements MouseListener, MouseMotionListen
       yIndexMid = 1;
      }
      
-     //Adding density to density array
-     for (int j = 0; j < drawDensRadius; j++) {
-      for (int k = 0; k < drawDensRadius; k++) {
-       solv.dens2[xIndexMid + j][yIndexMid + k] = densityEmission;
-      }
+     if (xIndexMid == xLast && yIndexMid == yLast) {
+      continue;
      }
+     xLast = xIndexMid;
+     yLast = yIndexMid;
+     
+     //Adding density to density array
+     sim.apply(InputEvent.density(xIndexMid, yIndexMid, drawDensRadius, densityEmission));
     
      //Adding velocity to velocity array
-     for (int j = 0; j < mouseDragRadius; j++) {
-      for (int k = 0; k < mouseDragRadius; k++) {
-       solv.Xvelo2[xIndexMid + j][yIndexMid + k] = deltaX * timeStep * mouseVectorScale;
-       solv.Yvelo2[xIndexMid + j][yIndexMid + k] = deltaY * timeStep * mouseVectorScale;
-      }
-     }
+     sim.apply(InputEvent.velocity(xIndexMid, yIndexMid, mouseDragRadius, deltaX * timeStep * mouseVectorScale, deltaY * timeStep * mouseVectorScale));
     }
    }
   }
@@ -611,7 +686,8 @@ public class Renderer extends JPanel implements MouseListener, MouseMotionListen
   xNow = e.getX();
   yNow = e.getY();
   
-  mouseSolve(e);
+  final int button = this.button, xPrev = this.xPrev, yPrev = this.yPrev, xNow = this.xNow, yNow = this.yNow;
+  sim.post(() -> mouseSolve(button, true, xPrev, yPrev, xNow, yNow));
   
  }
  
@@ -620,22 +696,28 @@ public class Renderer extends JPanel implements MouseListener, MouseMotionListen
  public void stateChanged(ChangeEvent e) {
   if (e.getSource() == nSlide) {
    n = nSlide.getValue();
-   setup();
+   sim.post(this::resize);
   } else if (e.getSource() == iterSlide) {
    iterations = iterSlide.getValue();
-   setup();
+   sim.post(() -> sim.apply(InputEvent.iterations(iterations)));
   } else if (e.getSource() == pCountSlide) {
    particleCount = pCountSlide.getValue();
-   resetParticles();
+   sim.post(this::resizeParticles);
   } else if (e.getSource() == timeSlide) {
     //JSliders only return integers, thus, to get decimal values from
     //them we divide by 100
    timeStep = ((float)timeSlide.getValue()) / 100f;
-   setup();
+   sim.post(() -> sim.apply(InputEvent.timeStep(timeStep)));
   } else if (e.getSource() == mouseVectorSlide) {
    mouseVectorScale = ((float)mouseVectorSlide.getValue()) / 100f;
   } else if (e.getSource() == partMoveSlide) {
    particleMoveScale = partMoveSlide.getValue();
+   sim.particleMoveScale = particleMoveScale;
+  } else if (e.getSource() == simRateSlide) {
+   simRate = simRateSlide.getValue();
+   sim.rate = simRate;
+  } else if (e.getSource() == renderRateSlide) {
+   renderRate = renderRateSlide.getValue();
   }
   
   rend.requestFocus();
@@ -646,23 +728,43 @@ public class Renderer extends JPanel implements MouseListener, MouseMotionListen
  public void keyPressed(KeyEvent e) {
   
   if (e.getKeyChar() == 'r') {
-   setup();
+   sim.post(this::setup);
   } else if (e.getKeyChar() == 'q') {
-   resetParticles();
+   sim.post(this::resetParticles);
   } else if (e.getKeyChar() == '1') {
    drawDens = !drawDens;
   } else if (e.getKeyChar() == '2') {
    drawVectors = !drawVectors;
   } else if (e.getKeyChar() == '3') {
    drawParticles = !drawParticles;
+   sim.moveParticles = drawParticles;
+  } else if (e.getKeyChar() == 's') {
+   saveCheckpoint();
+  } else if (e.getKeyChar() == 'o') {
+   loadCheckpoint();
+  } else if (e.getKeyChar() == 'k') {
+   toggleRecording();
+  } else if (e.getKeyChar() == 'i') {
+   drawMetrics = !drawMetrics;
+  } else if (e.getKeyChar() == 'l') {
+   paletteMode = (paletteMode + 1) % Palette.NAMES.length;
+  } else if (e.getKeyChar() == 'e') {
+   toggleInputLog();
+  } else if (e.getKeyChar() == 'p') {
+   sim.post(() -> sim.apply(InputEvent.solverMode(solv.solverMode == Solver.RED_BLACK ? Solver.GAUSS_SEIDEL : Solver.RED_BLACK)));
+  } else if (e.getKeyChar() == 'c') {
+   sim.post(() -> sim.apply(InputEvent.solverMode(solv.solverMode == Solver.CONJUGATE_GRADIENT ? Solver.GAUSS_SEIDEL : Solver.CONJUGATE_GRADIENT)));
+  } else if (e.getKeyChar() == 'j') {
+   sim.post(() -> sim.apply(InputEvent.solverMode(solv.solverMode == Solver.JACOBI ? Solver.GAUSS_SEIDEL : Solver.JACOBI)));
+  } else if (e.getKeyChar() == 'd') {
+   sim.post(() -> sim.apply(InputEvent.solverMode(solv.solverMode == Solver.STRIPS ? Solver.GAUSS_SEIDEL : Solver.STRIPS)));
+  } else if (e.getKeyChar() == 'm') {
+   sim.post(() -> sim.apply(InputEvent.pressureMode(solv.pressureMode == Solver.PRESSURE_MULTIGRID ? Solver.PRESSURE_ITERATIVE : Solver.PRESSURE_MULTIGRID)));
+  } else if (e.getKeyChar() == 'f') {
+   sim.post(() -> sim.apply(InputEvent.autoSpectral(!solv.autoSpectral)));
   } else if (e.getKeyChar() == 'v') {
-   if(wind == true){
-    wind = false;
-    solv.openRight = false;
-   } else {
-    wind = true;
-    solv.openRight = true;
-   }
+   //The jet stream also removes the right wall while it blows
+   sim.post(() -> sim.apply(InputEvent.wind(!sim.wind)));
   }
  }
  
@@ -0,0 +1,171 @@
+/*
+ * Incompressible 2D fluid simulation based on the work of Jos Stam.
+ *
+ * Steps the Solver and the particles on their own thread and publishes a Frame after every step.
+ */
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+public class Simulation extends Thread {
+
+	Solver solv;
+	Particles particles;
+
+	//Changes from other threads (sliders, keys, mouse) are queued and run between steps,
+		//so the Solver is only ever touched by this thread
+	ConcurrentLinkedQueue<Runnable> commands = new ConcurrentLinkedQueue<Runnable> ();
+
+	TripleBuffer<Frame> frames = new TripleBuffer<Frame> (new Frame (), new Frame (), new Frame ());
+
+	//Target steps per second, 0 runs as fast as possible
+	volatile int rate = 60;
+	//Measured steps per second
+	volatile float measuredRate;
+
+	volatile boolean running = true;
+	volatile boolean wind = false;
+	volatile boolean moveParticles = true;
+	volatile float particleMoveScale = 1100;
+
+	//Size of the panel the particles are drawn in and the window size particle coordinates refer to
+	volatile int viewWidth = 700, viewHeight = 700;
+	int baseWidth = 700, baseHeight = 700;
+
+	long steps;
+
+	//Copies the fields of every step it wants to the recording, null when not recording
+	volatile Recorder recorder;
+
+	//Every InputEvent applied since logStart is written here, null when not logging
+	InputLog inputLog;
+	long logStart;
+
+	public Simulation (Solver solv, Particles particles) {
+		super ("Simulation");
+		this.solv = solv;
+		this.particles = particles;
+		setDaemon(true);
+	}
+
+	//Runs command on this thread before the next step
+	public void post (Runnable command) {
+		commands.add(command);
+	}
+
+	//Applies event to the Solver and logs it, only call from this thread
+	public void apply (InputEvent event) {
+		event.apply(solv);
+		wind = event.windAfter(wind);
+
+		if (inputLog != null) {
+			try {
+				inputLog.write((int) (steps - logStart), event);
+			} catch (IOException | RuntimeException e) {
+				e.printStackTrace();
+				System.err.println("Input log stopped after " + (steps - logStart) + " steps, this event is missing from it");
+				closeLog ();
+			}
+		}
+	}
+
+	//Starts logging input events to log, only call from this thread
+	public void openLog (InputLog log) {
+		closeLog ();
+		inputLog = log;
+		logStart = steps;
+	}
+
+	//Ends the input log after the steps taken so far, only call from this thread
+	public void closeLog () {
+		if (inputLog == null) {
+			return;
+		}
+		InputLog log = inputLog;
+		inputLog = null;
+		try {
+			log.close((int) (steps - logStart));
+		} catch (IOException | RuntimeException e) {
+			e.printStackTrace();
+			System.err.println("Input log could not be ended, it may be incomplete");
+		}
+	}
+
+	public void run () {
+
+		long next = System.nanoTime();
+		long rateStart = next;
+		int rateSteps = 0;
+
+		while (running) {
+
+			Runnable command;
+			while ((command = commands.poll()) != null) {
+				//A command that fails, for example an event with settings the Solver rejects, is
+				//dropped instead of ending the simulation
+				try {
+					command.run();
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+
+			step ();
+
+			Frame frame = frames.back();
+			frame.capture(solv, particles, ++steps);
+			frames.publish();
+
+			Recorder recording = recorder;
+			if (recording != null) {
+				recording.record(solv, steps);
+			}
+
+			//Steps per second, averaged over half a second
+			long now = System.nanoTime();
+			rateSteps++;
+			if (now - rateStart > 500000000L) {
+				measuredRate = rateSteps * 1e9f / (now - rateStart);
+				rateStart = now;
+				rateSteps = 0;
+			}
+
+			//Waits for the next step at the target rate, skipping ahead instead of catching up if behind
+			int target = rate;
+			if (target > 0) {
+				next += 1000000000L / target;
+				if (next < now) {
+					next = now;
+				}
+				while ((now = System.nanoTime()) < next) {
+					LockSupport.parkNanos(next - now);
+				}
+			} else {
+				next = now;
+			}
+		}
+	}
+
+	//Adds wind, moves the simulation forward one timeStep and moves the particles with it
+	void step () {
+
+		if (wind) {
+			solv.addJetStream ();
+		}
+		solv.step ();
+
+		if (moveParticles) {
+			long timer = solv.metrics.start();
+			int n = solv.n;
+			float cellSizeX = (float) viewWidth / n;
+			float cellSizeY = (float) viewHeight / n;
+			float windowScaleX = (int) (cellSizeX * n) / (float) baseWidth;
+			float windowScaleY = (int) (cellSizeY * n) / (float) baseHeight;
+
+			particles.update(solv, cellSizeX, cellSizeY, windowScaleX, windowScaleY,
+					(int) (cellSizeX * n) / windowScaleX, (int) (cellSizeY * n) / windowScaleY, particleMoveScale);
+			solv.metrics.record(Metrics.PARTICLES, timer);
+		}
+	}
+}
@@ -13,6 +13,10 @@
  * http://www.multires.caltech.edu/teaching/demos/java/stablefluids.htm
  */
 
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
 public class Solver {
 
 	//Declaring public variables
@@ -24,15 +28,104 @@ public class Solver {
 
 	float viscosity = 0.0f;
 	float diff = 0.0001f;
+	
+	//Linear solver modes used by linearSolver
+		//GAUSS_SEIDEL is the original sequential in-place sweep
+		//RED_BLACK updates the grid in a checkerboard order so each colour can be split across cores
+		//CONJUGATE_GRADIENT runs preconditioned conjugate gradient until a residual target is met
+		//JACOBI computes every cell from the previous sweep only, so the JIT can vectorize the rows,
+		//and runs twice as many sweeps since each does less
+		//STRIPS splits the grid into strips of rows owned by their own threads, see Strips.
+		//It also runs advection on the strips.
+	static final int GAUSS_SEIDEL = 0;
+	static final int RED_BLACK = 1;
+	static final int CONJUGATE_GRADIENT = 2;
+	static final int JACOBI = 3;
+	static final int STRIPS = 4;
+	int solverMode = GAUSS_SEIDEL;
+	
+	ConjugateGradient conjugateGradient = new ConjugateGradient (this);
+	Strips strips = new Strips (this);
+	
+	//If above zero, the Gauss-Seidel, red-black and Jacobi solvers stop before running all
+	//iterations once the largest residual is below tolerance times the largest right hand side.
+	//The residual costs a pass over the grid, so it is only checked every residualInterval iterations.
+	float tolerance = 0;
+	int residualInterval = 2;
+	int lastIterations;
+	int lastPressureIterations;
+	
+	//Pressure solver modes used by project
+		//PRESSURE_ITERATIVE runs the Poisson equation through linearSolver
+		//PRESSURE_MULTIGRID runs geometric multigrid V-cycles until a residual target is met
+		//PRESSURE_SPECTRAL solves it exactly with cosine transforms, only valid without user-drawn walls
+	static final int PRESSURE_ITERATIVE = 0;
+	static final int PRESSURE_MULTIGRID = 1;
+	static final int PRESSURE_SPECTRAL = 2;
+	int pressureMode = PRESSURE_ITERATIVE;
+	
+	//If true, project uses the spectral solver whenever no walls have been drawn
+	boolean autoSpectral = true;
+	
+	Multigrid multigrid = new Multigrid (this);
+	SpectralPoisson spectral = new SpectralPoisson ();
+	
+	//If true, density is only diffused and advected inside the tiles that hold some, see ActiveTiles.
+	//Only used with the GAUSS_SEIDEL solverMode, the other solvers always work on the whole grid.
+	boolean sparseDensity = true;
+	ActiveTiles tiles = new ActiveTiles (this);
+	
+	//Largest velocity component of the interior after the last project, so ActiveTiles doesn't
+	//need a pass of its own over the velocity to know how far density can move
+	float maxVelocity;
+	
+	//If true, each of the two projections in velocitySolver starts its pressure solve from the
+	//pressure it found on the previous step instead of from zero, see pressure
+	boolean warmStart = true;
+	
+	//Time spent in each phase of recent steps
+	Metrics metrics = new Metrics ();
+	
+	//If true, velocitySolver merges passes that give the same result in fewer sweeps over memory
+	boolean fusedVelocity = true;
+	
+	//Number of row bands per worker thread used by the parallel sweeps
+	int bandsPerThread = 2;
 
-	float[][] temp;
+	float[] temp;
+	
+	//Second buffer of the Jacobi solver. temp can't be used, the swap methods leave it pointing
+	//at one of the live fields.
+	float[] jacobiBuffer;
+	
+	//Cells converged skips, only set while it runs
+	boolean[] unchecked = new boolean[0];
+	
+	//Flat indices of every cell marked in drawBnd, in ascending order.
+	//setBound only visits these instead of scanning the whole grid.
+	int[] walls = new int[64];
+	int wallCount;
 
-	float[][] drawBnd;
-	float[][] dens, dens2;
-	float[][] Xvelo, Xvelo2;
-	float[][] Yvelo, Yvelo2;
+	//Every field is stored as a single flat array of size * size floats.
+	//Cell (i, j) lives at index i * size + j (see index()), so the inner j loops
+	//walk memory contiguously and a stencil only needs one array access per neighbor.
+	//The extra ghost layer of size = n + 2 doubles as padding around the grid.
+	float[] drawBnd;
+	float[] dens, dens2;
+	float[] Xvelo, Xvelo2;
+	float[] Yvelo, Yvelo2;
 
-	//Initializes necessary 2d arrays and resets their values
+	//User input waiting to be added on the next step. Only the cells listed in stamped are
+	//ever non-zero, so adding and clearing the sources touches just those cells.
+	float[] densSource, XveloSource, YveloSource;
+
+	//Pressure of the first and second projection of the last step, kept between steps for warmStart
+	float[][] pressure = new float[2][];
+	boolean[] isStamped;
+	int[] stamped = new int[64];
+	int stampCount;
+
+	//Initializes necessary flat arrays and resets their values
 		//drawBnd is a user generated array used to define boundaries
 		//dens, dens2 store the current and previous density values
 		//Xvelo, Xvelo2 store the X component of the current and previous velocities
@@ -44,36 +137,251 @@ public class Solver {
 		size = n + 2;
 		iterations = iter;
 
-		drawBnd		= new float[size][size];
-		dens 		= new float[size][size];
-		dens2 		= new float[size][size];
-		Xvelo		= new float[size][size];
-		Xvelo2 		= new float[size][size];
-		Yvelo 		= new float[size][size];
-		Yvelo2 		= new float[size][size];
-
-		for (int i = 0; i < size; i++) {
-			for (int j = 0; j < size; j++) {
-				drawBnd[i][j] = dens[i][j] = dens2[i][j] = Xvelo[i][j] = Xvelo2[i][j] = Yvelo[i][j] = Yvelo2[i][j] = 0f;
+		//Java zero-initializes new arrays, so no clearing pass is needed
+		drawBnd		= new float[size * size];
+		wallCount	= 0;
+		dens 		= new float[size * size];
+		dens2 		= new float[size * size];
+		Xvelo		= new float[size * size];
+		Xvelo2 		= new float[size * size];
+		Yvelo 		= new float[size * size];
+		Yvelo2 		= new float[size * size];
+		densSource	= new float[size * size];
+		XveloSource	= new float[size * size];
+		YveloSource	= new float[size * size];
+		isStamped	= new boolean[size * size];
+		stampCount	= 0;
+		tiles.setup(n);
+		pressure[0]	= new float[size * size];
+		pressure[1]	= new float[size * size];
+	}
+	
+	//Changes the grid to x by x cells without restarting the simulation.
+		//Density and velocity are resampled bilinearly onto the new cells, and every new cell that
+		//overlaps an old wall cell becomes a wall so drawn boundaries stay closed. Arrays are only
+		//reallocated when they are too small, so they can be longer than size * size afterwards.
+	public void resize (int x) {
+		
+		if (x == n) {
+			return;
+		}
+		
+		//Stamped cells are indexed with the old size
+		clearSources ();
+		int[] oldWalls = Arrays.copyOf(walls, wallCount);
+		int oldN = n, oldSize = size;
+		
+		n = x;
+		size = n + 2;
+		int cells = size * size;
+		
+		drawBnd = capacity (drawBnd, cells);
+		Arrays.fill(drawBnd, 0, cells, 0f);
+		wallCount = 0;
+		//Each wall covers the new cells overlapping it, clamped to rows and columns 2 to n - 1 like
+		//the walls the Renderer draws, setBound reads two cells past a wall on every side
+		for (int w = 0; w < oldWalls.length; w++) {
+			int oi = oldWalls[w] / oldSize, oj = oldWalls[w] % oldSize;
+			int i0 = Math.max(2, Math.min(n - 1, (oi - 1) * n / oldN + 1));
+			int i1 = Math.min(n - 1, Math.max(2, (oi * n + oldN - 1) / oldN));
+			int j0 = Math.max(2, Math.min(n - 1, (oj - 1) * n / oldN + 1));
+			int j1 = Math.min(n - 1, Math.max(2, (oj * n + oldN - 1) / oldN));
+			for (int i = i0; i <= i1; i++) {
+				for (int j = j0; j <= j1; j++) {
+					addWall (i, j);
+				}
+			}
+		}
+		
+		//Each field is resampled into its scratch buffer, which then becomes the field
+		float[] old = dens;
+		dens = resample (0, old, oldN, oldSize, capacity (dens2, cells));
+		dens2 = scratch (old, cells);
+		
+		old = Xvelo;
+		Xvelo = resample (1, old, oldN, oldSize, capacity (Xvelo2, cells));
+		Xvelo2 = scratch (old, cells);
+		
+		old = Yvelo;
+		Yvelo = resample (2, old, oldN, oldSize, capacity (Yvelo2, cells));
+		Yvelo2 = scratch (old, cells);
+		
+		//Sources are all zero once cleared, so they only need to be big enough
+		densSource	= capacity (densSource, cells);
+		XveloSource	= capacity (XveloSource, cells);
+		YveloSource	= capacity (YveloSource, cells);
+		if (isStamped.length < cells) {
+			isStamped = new boolean[cells];
+		}
+		
+		pressure[0] = scratch (pressure[0], cells);
+		pressure[1] = scratch (pressure[1], cells);
+		
+		tiles.setup(n);
+		tiles.invalidate();
+	}
+	
+	//array if it holds at least cells floats, otherwise a new array of that size
+	static float[] capacity (float[] array, int cells) {
+		return array.length >= cells ? array : new float[cells];
+	}
+	
+	//capacity with the first cells floats set to zero
+	static float[] scratch (float[] array, int cells) {
+		array = capacity (array, cells);
+		Arrays.fill(array, 0, cells, 0f);
+		return array;
+	}
+	
+	//Writes the bilinear interpolation of field, laid out for an oldN grid, to every interior cell of
+	//to and enforces boundaries b on it. Cell centers line up as in advect, clamped to the old ghost cells.
+	float[] resample (int b, float[] field, int oldN, int oldSize, float[] to) {
+		
+		float scale = (float) oldN / n;
+		
+		for (int i = 1; i <= n; i++) {
+			float x = Math.min(oldN + 0.5f, Math.max(0.5f, (i - 0.5f) * scale + 0.5f));
+			int i0 = (int) x;
+			float s1 = x - i0, s0 = 1 - s1;
+			int k0 = i0 * oldSize, k1 = k0 + oldSize;
+			
+			for (int j = 1; j <= n; j++) {
+				float y = Math.min(oldN + 0.5f, Math.max(0.5f, (j - 0.5f) * scale + 0.5f));
+				int j0 = (int) y;
+				float t1 = y - j0, t0 = 1 - t1;
+				
+				to[i * size + j] = s0 * (t0 * field[k0 + j0] + t1 * field[k0 + j0 + 1])
+								 + s1 * (t0 * field[k1 + j0] + t1 * field[k1 + j0 + 1]);
 			}
 		}
+		setBound (b, to);
+		return to;
+	}
+	
+	//Returns true if the user has drawn any boundaries
+	public boolean hasWalls () {
+		return wallCount > 0;
+	}
+	
+	//Marks cell (i, j) as a user-drawn boundary
+		//drawBnd should only be changed through this method or followed by rebuildWalls,
+		//so the list of wall cells used by setBound stays in sync with it.
+	public void addWall (int i, int j) {
+		
+		int k = index(i, j);
+		if (drawBnd[k] != 0) {
+			return;
+		}
+		drawBnd[k] = 1;
+		
+		if (wallCount == walls.length) {
+			walls = Arrays.copyOf(walls, wallCount * 2);
+		}
+		
+		//Keeping the list sorted preserves the row by row order setBound used to visit walls in
+		int pos = -Arrays.binarySearch(walls, 0, wallCount, k) - 1;
+		System.arraycopy(walls, pos, walls, pos + 1, wallCount - pos);
+		walls[pos] = k;
+		wallCount++;
+	}
+	
+	//Rebuilds the list of wall cells from drawBnd
+	public void rebuildWalls () {
+		
+		wallCount = 0;
+		for (int k = 0; k < size * size; k++) {
+			if (drawBnd[k] != 0) {
+				if (wallCount == walls.length) {
+					walls = Arrays.copyOf(walls, wallCount * 2);
+				}
+				walls[wallCount++] = k;
+			}
+		}
+	}
+	
+	//Returns the flat array index of grid cell (i, j)
+	public int index (int i, int j) {
+		return i * size + j;
 	}
 	
 	//A single method used to move the simulation forward by 1 timeStep
 	public void step () {
+		long timer = metrics.start();
 		velocitySolver ();
 		densitySolver ();
+		clearSources ();
+		metrics.stop(Metrics.STEP, timer);
+		metrics.endStep();
+	}
+
+	//Ends the threads the STRIPS solverMode started, call once the Solver is no longer stepped.
+		//It can still be used afterwards, they're started again when needed.
+	public void close () {
+		strips.close();
+	}
+
+	//Sets the density emitted into cell (i, j) on the next step
+	public void setDensitySource (int i, int j, float amount) {
+		int k = index(i, j);
+		stamp (k);
+		densSource[k] = amount;
 	}
 
-	//Array s (source) is either a velocity or density array that has
+	//Sets the velocity pushed into cell (i, j) on the next step
+	public void setVelocitySource (int i, int j, float x, float y) {
+		int k = index(i, j);
+		stamp (k);
+		XveloSource[k] = x;
+		YveloSource[k] = y;
+	}
+
+	//Remembers that cell k has a source so addSource and clearSources visit it
+	void stamp (int k) {
+		if (isStamped[k]) {
+			return;
+		}
+		isStamped[k] = true;
+		if (stampCount == stamped.length) {
+			stamped = Arrays.copyOf(stamped, stampCount * 2);
+		}
+		stamped[stampCount++] = k;
+	}
+
+	//Zeroes the stamped cells of every source array once the step has used them
+	void clearSources () {
+		for (int m = 0; m < stampCount; m++) {
+			int k = stamped[m];
+			densSource[k] = 0;
+			XveloSource[k] = 0;
+			YveloSource[k] = 0;
+			isStamped[k] = false;
+		}
+		stampCount = 0;
+	}
+
+	//Array s (source) is one of the source arrays that has
 	//been modified by user interaction from the Renderer class.
 	//This method allows a modified array to properly influence
-	//the target array x.
-	public void addSource (float[][] x, float[][] s) {
+	//the target array x. Only stamped cells can be non-zero, so
+	//without user input this does nothing.
+	public void addSource (float[] x, float[] s) {
+
+		long timer = metrics.start();
 
-		for (int i = 0; i < size; i++) {
-			for (int j = 0; j < size; j++) {
-				x[i][j] += timeStep * s[i][j];
+		for (int m = 0; m < stampCount; m++) {
+			int k = stamped[m];
+			x[k] += timeStep * s[k];
+		}
+		metrics.stop(Metrics.ADD_SOURCE, timer);
+	}
+	
+	//Pushes fluid to the right from a small square near the left edge
+	public void addJetStream () {
+		for (int i = -2; i < 2; i++) {
+			for(int j = -2; j < 2; j++) {
+				int k = index(5 + i, n/2 + j);
+				stamp (k);
+				XveloSource[k] = 0.1f;
 			}
 		}
 	}
@@ -81,27 +389,38 @@ public class Solver {
 	//Final density solving method for a given timeStep
 	public void densitySolver () {
 		
-		addSource(dens, dens2);
+		addSource(dens, densSource);
+		
+		if (sparseDensity && solverMode == GAUSS_SEIDEL) {
+			tiles.update(dens, dens2);
+			
+			swapD();
+			diffuseTiles (0, dens, dens2, diff);
+			
+			swapD();
+			advectTiles (0, dens, dens2, Xvelo, Yvelo);
+			return;
+		}
+		tiles.invalidate();
 		
 		swapD();
 		diffuse (0, dens, dens2, diff);
 		
 		swapD();
 		advect (0, dens, dens2, Xvelo, Yvelo);
-		
-		for (int i = 0; i < size; i++) {
-			for (int j = 0; j < size; j++) {
-				dens2[i][j] = 0;
-			}
-		}
 	}
 	
 	//Single method to solve final velocity for a given timeStep;
 	public void velocitySolver () {
 		
 		//Add user-generated velocities
-		addSource(Xvelo, Xvelo2);
-		addSource(Yvelo, Yvelo2);
+		addSource(Xvelo, XveloSource);
+		addSource(Yvelo, YveloSource);
+		
+		if (fusedVelocity) {
+			fusedVelocitySolver ();
+			return;
+		}
 		
 		//Calculating X velocity diffusion
 		swapX();
@@ -112,7 +431,7 @@ public class Solver {
 		diffuse (0, Yvelo, Yvelo2, viscosity);
 		
 		//Enforcing mass conservation
-		project (Xvelo, Yvelo, Xvelo2, Yvelo2);
+		projectVelocity (0);
 		
 		swapX();
 		swapY();
@@ -122,26 +441,94 @@ public class Solver {
 		advect (2, Yvelo, Yvelo2, Xvelo2, Yvelo2);
 		
 		//Reinforcing mass conservation
-		project (Xvelo, Yvelo, Xvelo2, Yvelo2);
+		projectVelocity (1);
+	}
+	
+	//velocitySolver with its passes merged, after the sources have been added.
+		//Without viscosity diffusion is a copy into the other buffer, so the velocity stays where it
+		//is and only gets its boundaries. Both components are advected in one sweep since they are
+		//traced back along the same velocity. The divergence pass already zeroes the pressure.
+	void fusedVelocitySolver () {
 		
-		//Resetting input velocities for next timeStep
-		for (int i = 0; i < size; i++) {
-			for (int j = 0; j < size; j++) {
-				Xvelo2[i][j] = 0;
-				Yvelo2[i][j] = 0;
-			}
+		if (timeStep * viscosity * n * n == 0) {
+			setBound (0, Xvelo);
+			setBound (0, Yvelo);
+		} else {
+			swapX();
+			diffuse (0, Xvelo, Xvelo2, viscosity);
+			swapY();
+			diffuse (0, Yvelo, Yvelo2, viscosity);
 		}
+		
+		projectVelocity (0);
+		
+		swapX();
+		swapY();
+		
+		advectVelocity (Xvelo, Yvelo, Xvelo2, Yvelo2);
+		
+		projectVelocity (1);
 	}
 	
 	//Allows fluid density to spread across neighboring grid cells.
 		//The new density array is calculated by finding the densities that,
 		//when diffused backwards in time yield the original density array difRay.
 		//The linearSolver allows us to solve for the values of difStore.
-	public void diffuse (int b, float[][] difStore, float[][] difRay, float diff) {
+		//With a zero coefficient (no viscosity) the system is the identity, so difRay is just copied.
+	public void diffuse (int b, float[] difStore, float[] difRay, float diff) {
+
+		long timer = metrics.start();
 		
 		float a = timeStep * diff * n * n;
+		if (a == 0) {
+			System.arraycopy(difRay, 0, difStore, 0, size * size);
+			setBound (b, difStore);
+			metrics.stop(Metrics.DIFFUSE, timer);
+			return;
+		}
 		linearSolver (b, difStore, difRay, a, 1 + 4 * a);
 		
+		metrics.stop(Metrics.DIFFUSE, timer);
+	}
+	
+	//diffuse restricted to the active tiles.
+		//Cells outside them are zero and stay zero, so they act as a fixed boundary.
+	public void diffuseTiles (int b, float[] difStore, float[] difRay, float diff) {
+
+		long timer = metrics.start();
+		
+		float a = timeStep * diff * n * n;
+		float invC = 1 / (1 + 4 * a);
+		int iters = a == 0 ? 1 : iterations;
+		
+		for (int iter = 0; iter < iters; iter++) {
+			for (int m = 0; m < tiles.count; m++) {
+				int tile = tiles.list[m];
+				int j0 = tiles.colStart(tile), j1 = tiles.colEnd(tile);
+				for (int i = tiles.rowStart(tile); i <= tiles.rowEnd(tile); i++) {
+					int row = i * size;
+					for (int j = j0; j <= j1; j++) {
+						int k = row + j;
+						difStore[k] = (a * (difStore[k - size] + difStore[k + size] + difStore[k - 1] + difStore[k + 1]) + difRay[k]) * invC;
+					}
+				}
+			}
+			setBound (b, difStore);
+		}
+		metrics.stop(Metrics.DIFFUSE, timer);
+	}
+	
+	//Projects Xvelo, Yvelo for the given stage of velocitySolver (0 or 1), warm started if enabled
+	void projectVelocity (int stage) {
+		if (warmStart) {
+			project (Xvelo, Yvelo, pressure[stage], Yvelo2, true);
+		} else {
+			project (Xvelo, Yvelo, Xvelo2, Yvelo2, false);
+		}
+	}
+	
+	public void project (float[] velX, float[] velY, float[] temp, float[] tempDiv) {
+		project (velX, velY, temp, tempDiv, false);
 	}
 	
 	//Enforces conservation of mass for each fluid cell
@@ -149,14 +536,23 @@ public class Solver {
 		//velocity field is the sum of an incompressible field and a gradient field. Thus, to simulate an
 		//incompressible fluid, we must subtract the gradient field from the current velocity field.
 		//To do this, we must solve a linear system known as the Poisson equation. This can be solved using
-		//our Gauss-Seidel based linearSolver.
-	public void project (float[][] velX, float[][] velY, float[][] temp, float[][] tempDiv) {
+		//our Gauss-Seidel based linearSolver, or with multigrid depending on pressureMode.
+		//Without walls the equation is solved directly in frequency space, see SpectralPoisson.
+		//If warm is true temp already holds a pressure from an earlier solve which the iterative
+		//solvers start from, otherwise they start from zero.
+	public void project (float[] velX, float[] velY, float[] temp, float[] tempDiv, boolean warm) {
+
+		long timer = metrics.start();
 		
 		for (int i = 1; i <= n; i++) {
+			int row = i * size;
 			for (int j = 1; j <= n; j++) {
+				int k = row + j;
 				
-				tempDiv[i][j] = (velX[i+1][j] - velX[i-1][j] + velY[i][j+1] - velY[i][j-1]) * - 0.5f/n;
-				temp[i][j] = 0;
+				tempDiv[k] = (velX[k + size] - velX[k - size] + velY[k + 1] - velY[k - 1]) * - 0.5f/n;
+				if (!warm) {
+					temp[k] = 0;
+				}
 				
 			}
 		}
@@ -164,31 +560,271 @@ public class Solver {
 		setBound (0, tempDiv);
 		setBound (0, temp);
 
-		linearSolver (0, temp, tempDiv, 1, 4);
+		boolean spectralAllowed = !hasWalls ();
+		
+		if ((pressureMode == PRESSURE_SPECTRAL || autoSpectral) && spectralAllowed) {
+			spectral.solve (temp, tempDiv, n, size);
+			setBound (0, temp);
+		} else if (pressureMode == PRESSURE_MULTIGRID) {
+			multigrid.solve (temp, tempDiv);
+		} else {
+			linearSolver (0, temp, tempDiv, 1, 4);
+			lastPressureIterations = lastIterations;
+		}
+		
+		//Pressure is only defined up to a constant and a solve can shift it a little, so a pressure
+		//kept across steps is re-centred to keep it from drifting away from zero
+		if (warm) {
+			removeMean (temp);
+		}
 
+		//setBound below only mirrors these cells, so their maximum holds for the result too
+		float max = 0;
 		for (int i = 1; i <= n; i++) {
+			int row = i * size;
 			for (int j = 1; j <= n; j++) {
-				velX[i][j] -= 0.5f * n * (temp[i+1][j] - temp[i-1][j]);
-				velY[i][j] -= 0.5f * n * (temp[i][j+1] - temp[i][j-1]);
+				int k = row + j;
+				velX[k] -= 0.5f * n * (temp[k + size] - temp[k - size]);
+				velY[k] -= 0.5f * n * (temp[k + 1] - temp[k - 1]);
+				max = Math.max(max, Math.max(Math.abs(velX[k]), Math.abs(velY[k])));
 			}
 		}
+		maxVelocity = max;
 		
 		setBound (1, velX);
 		setBound (2, velY);
 		
+		metrics.stop(Metrics.PROJECT, timer);
+	}
+	
+	//Subtracts the average of the interior cells from every cell of x
+	void removeMean (float[] x) {
+		
+		double sum = 0;
+		for (int i = 1; i <= n; i++) {
+			int row = i * size;
+			for (int j = 1; j <= n; j++) {
+				sum += x[row + j];
+			}
+		}
+		float mean = (float) (sum / ((double) n * n));
+		for (int k = 0; k < size * size; k++) {
+			x[k] -= mean;
+		}
+	}
+	
+	//Largest right hand side times tolerance, or -1 if the solvers should always run every iteration
+	float residualTarget (float[] x0) {
+		
+		if (tolerance <= 0) {
+			return -1;
+		}
+		float max = 0;
+		for (int i = 1; i <= n; i++) {
+			int row = i * size;
+			for (int j = 1; j <= n; j++) {
+				max = Math.max(max, Math.abs(x0[row + j]));
+			}
+		}
+		return tolerance * max;
+	}
+	
+	//True if iteration iter (counting from 0) is due for a residual check and the largest residual of
+	//c x - a (sum of the 4 neighbors of x) = x0 is at most target.
+		//setBound overwrites walls and their 4 neighbors, so those never satisfy the equation. Neither
+		//do the cells after them in the sequential sweep's order: they were relaxed with the value the
+		//overwritten cell had during the sweep, not the one setBound left. All of these are skipped.
+	boolean converged (float[] x, float[] x0, float a, float c, float target, int iter) {
+		
+		if (target < 0 || (iter + 1) % residualInterval != 0) {
+			return false;
+		}
+		
+		if (unchecked.length < size * size) {
+			unchecked = new boolean[size * size];
+		}
+		markUnchecked (true);
+		
+		boolean done = true;
+		for (int i = 1; i <= n && done; i++) {
+			int row = i * size;
+			for (int j = 1; j <= n; j++) {
+				int k = row + j;
+				if (unchecked[k]) {
+					continue;
+				}
+				float r = x0[k] - (c * x[k] - a * (x[k - size] + x[k + size] + x[k - 1] + x[k + 1]));
+				if (Math.abs(r) > target) {
+					done = false;
+					break;
+				}
+			}
+		}
+		
+		markUnchecked (false);
+		return done;
+	}
+	
+	//Sets the cells converged skips to value, in O(walls)
+	void markUnchecked (boolean value) {
+		
+		for (int w = 0; w < wallCount; w++) {
+			int k = walls[w];
+			markUnchecked (k, value);
+			markUnchecked (k - size, value);
+			markUnchecked (k + size, value);
+			markUnchecked (k - 1, value);
+			markUnchecked (k + 1, value);
+		}
+	}
+	
+	//Sets overwritten cell k and the two cells relaxed after it that read it.
+		//Indices are clamped to the array, converged only checks the interior anyway.
+	void markUnchecked (int k, boolean value) {
+		int last = size * size - 1;
+		unchecked[Math.max(0, Math.min(last, k))] = value;
+		unchecked[Math.max(0, Math.min(last, k + size))] = value;
+		unchecked[Math.max(0, Math.min(last, k + 1))] = value;
 	}
 	
 	//An iterative implementation of the Gauss-Seidel relaxation
 	//technique used to solve linear systems.
-	public void linearSolver (int b, float[][] x, float[][] x0, float a, float c) {
+	public void linearSolver (int b, float[] x, float[] x0, float a, float c) {
+		
+		if (solverMode == RED_BLACK) {
+			redBlackSolver (b, x, x0, a, c);
+			return;
+		} else if (solverMode == CONJUGATE_GRADIENT) {
+			conjugateGradient.solve (b, x, x0, a, c);
+			return;
+		} else if (solverMode == JACOBI) {
+			jacobiSolver (b, x, x0, a, c);
+			return;
+		} else if (solverMode == STRIPS) {
+			strips.solve (b, x, x0, a, c);
+			return;
+		}
+		gaussSeidelSolver (b, x, x0, a, c);
+	}
+	
+	//The sequential Gauss-Seidel sweep of the GAUSS_SEIDEL solverMode
+	public void gaussSeidelSolver (int b, float[] x, float[] x0, float a, float c) {
 		
-		for (int k = 0; k < iterations; k++) {
+		float invC = 1 / c;
+		float target = residualTarget (x0);
+		
+		for (int iter = 0; iter < iterations; iter++) {
 			for (int i = 1; i <= n; i++) {
+				int row = i * size;
 				for (int j = 1; j <= n; j++) {
-					x[i][j] = (a * (x[i-1][j] + x[i+1][j] + x[i][j-1] + x[i][j+1]) + x0[i][j]) / c;
+					int k = row + j;
+					x[k] = (a * (x[k - size] + x[k + size] + x[k - 1] + x[k + 1]) + x0[k]) * invC;
 				}
 			}
 			setBound (b, x);
+			
+			lastIterations = iter + 1;
+			if (converged (x, x0, a, c, target, iter)) {
+				break;
+			}
+		}
+	}
+	
+	//Red-black ordered Gauss-Seidel.
+		//Cells where i + j is even (red) only depend on odd (black) neighbors and vice versa,
+		//so every cell of one colour can be updated at the same time. Each colour's sweep is
+		//split into bands of rows which run on the common ForkJoin pool, and boundaries are
+		//enforced after each colour so the next colour sees up to date ghost cells.
+		//It converges to the same solution as the sequential sweep, only the update order differs.
+	public void redBlackSolver (int b, float[] x, float[] x0, float a, float c) {
+		
+		float invC = 1 / c;
+		int bands = Math.min(n, ForkJoinPool.getCommonPoolParallelism() * bandsPerThread);
+		int rowsPerBand = (n + bands - 1) / bands;
+		float target = residualTarget (x0);
+		
+		for (int iter = 0; iter < iterations; iter++) {
+			for (int colour = 0; colour < 2; colour++) {
+				final int parity = colour;
+				
+				IntStream.range(0, bands).parallel().forEach(band -> {
+					int start = 1 + band * rowsPerBand;
+					int end = Math.min(n, start + rowsPerBand - 1);
+					redBlackRows (x, x0, a, invC, parity, start, end);
+				});
+				
+				setBound (b, x);
+			}
+			
+			lastIterations = iter + 1;
+			if (converged (x, x0, a, c, target, iter)) {
+				break;
+			}
+		}
+	}
+	
+	//Relaxes the cells of a single colour in rows start through end
+	void redBlackRows (float[] x, float[] x0, float a, float invC, int parity, int start, int end) {
+		
+		for (int i = start; i <= end; i++) {
+			int row = i * size;
+			
+			//First column j >= 1 for which (i + j) % 2 == parity
+			int j0 = 1 + ((i + 1 + parity) & 1);
+			
+			for (int j = j0; j <= n; j += 2) {
+				int k = row + j;
+				x[k] = (a * (x[k - size] + x[k + size] + x[k - 1] + x[k + 1]) + x0[k]) * invC;
+			}
+		}
+	}
+
+	//Jacobi iteration.
+		//Each sweep reads only the previous sweep, which alternates between x and jacobiBuffer, so the
+		//inner loop has no dependency between neighboring cells. HotSpot's superword pass can turn
+		//such loops into SIMD instructions on any Java version. The tree builds for Java 8, so the
+		//incubating Vector API isn't used, and whether the loop really is vectorized is up to the
+		//JIT: Benchmark -verify only checks its results, and the timings show the speed.
+		//Jacobi needs about twice as many sweeps as Gauss-Seidel for the same accuracy, so it runs
+		//2 * iterations of them, and lastIterations counts sweeps.
+	public void jacobiSolver (int b, float[] x, float[] x0, float a, float c) {
+		
+		if (jacobiBuffer == null || jacobiBuffer.length < size * size) {
+			jacobiBuffer = new float[size * size];
+		}
+		
+		float invC = 1 / c;
+		float[] from = x, to = jacobiBuffer;
+		float target = residualTarget (x0);
+		int sweeps = 2 * iterations;
+		
+		for (int iter = 0; iter < sweeps; iter++) {
+			jacobiRows (to, from, x0, a, invC, 1, n);
+			setBound (b, to);
+			
+			float[] swap = from;
+			from = to;
+			to = swap;
+			
+			lastIterations = iter + 1;
+			if (converged (from, x0, a, c, target, iter)) {
+				break;
+			}
+		}
+		
+		if (from != x) {
+			System.arraycopy(from, 0, x, 0, size * size);
+		}
+	}
+	
+	//One Jacobi sweep over rows start through end, reading from and writing to
+	void jacobiRows (float[] to, float[] from, float[] x0, float a, float invC, int start, int end) {
+		
+		for (int i = start; i <= end; i++) {
+			int row = i * size;
+			for (int k = row + 1; k <= row + n; k++) {
+				to[k] = (a * (from[k - size] + from[k + size] + from[k - 1] + from[k + 1]) + x0[k]) * invC;
+			}
 		}
 	}
 
@@ -197,19 +833,101 @@ public class Solver {
 	//position of this particle is an float. The simulation, however, is running in a discrete
 	//array. Thus, the density at this point must be found by taking a weighted average of densities
 	//of the 4 grid cells closes to it. Stam calls this 'linear backtracing'.
-	public void advect(int bound, float[][] advected, float[][] ray2Advect, float[][] velX, float[][] velY) {
+	public void advect(int bound, float[] advected, float[] ray2Advect, float[] velX, float[] velY) {
+
+		long timer = metrics.start();
+
+		if (solverMode == STRIPS) {
+			strips.advect (bound, advected, ray2Advect, velX, velY);
+		} else {
+			advectRect (advected, ray2Advect, velX, velY, 1, n, 1, n);
+			setBound(bound, advected);
+		}
+		metrics.stop(Metrics.ADVECT, timer);
+	}
+	
+	//advect restricted to the active tiles
+	public void advectTiles(int bound, float[] advected, float[] ray2Advect, float[] velX, float[] velY) {
+
+		long timer = metrics.start();
+		
+		for (int m = 0; m < tiles.count; m++) {
+			int tile = tiles.list[m];
+			advectRect (advected, ray2Advect, velX, velY, tiles.rowStart(tile), tiles.rowEnd(tile), tiles.colStart(tile), tiles.colEnd(tile));
+		}
+		setBound(bound, advected);
+		metrics.stop(Metrics.ADVECT, timer);
+	}
+	
+	//Advects both velocity components through the velocity field velX, velY in one sweep.
+		//Gives the same result as advect (1, advX, velX, velX, velY) followed by
+		//advect (2, advY, velY, velX, velY) while computing each backtrace once.
+	public void advectVelocity(float[] advX, float[] advY, float[] velX, float[] velY) {
+
+		long timer = metrics.start();
+
+		if (solverMode == STRIPS) {
+			strips.advectVelocity (advX, advY, velX, velY);
+		} else {
+			advectVelocityRows (advX, advY, velX, velY, 1, n);
+			setBound(1, advX);
+			setBound(2, advY);
+		}
+		metrics.stop(Metrics.ADVECT, timer);
+	}
+	
+	//advectVelocity of rows start through end without enforcing boundaries
+	void advectVelocityRows(float[] advX, float[] advY, float[] velX, float[] velY, int start, int end) {
+
+		float dt = timeStep * n;
+		
+		for (int i = start; i <= end; i++) {
+			int row = i * size;
+			for (int j = 1; j <= n; j++) {
+
+				float x = i - dt * velX[row + j];
+				float y = j - dt * velY[row + j];
+
+				if (x > n + 0.5f) {
+					x = n + 0.5f;
+				} else if (x < 0.5f) {
+					x = 0.5f;
+				}
+				if (y > n + 0.5f) {
+					y = n + 0.5f;
+				} else if (y < 0.5f) {
+					y = 0.5f;
+				}
+
+				int i0 = (int) x, j0 = (int) y;
+				int j1 = j0 + 1;
+				float s1 = x - i0, s0 = 1 - s1;
+				float t1 = y - j0, t0 = 1 - t1;
+
+				int k0 = i0 * size, k1 = k0 + size;
+				advX[row + j] = s0 * (t0 * velX[k0 + j0] + t1 * velX[k0 + j1])
+							  + s1 * (t0 * velX[k1 + j0] + t1 * velX[k1 + j1]);
+				advY[row + j] = s0 * (t0 * velY[k0 + j0] + t1 * velY[k0 + j1])
+							  + s1 * (t0 * velY[k1 + j0] + t1 * velY[k1 + j1]);
+			}
+		}
+	}
+	
+	//Advects cells iStart to iEnd, jStart to jEnd without enforcing boundaries
+	void advectRect(float[] advected, float[] ray2Advect, float[] velX, float[] velY, int iStart, int iEnd, int jStart, int jEnd) {
 
 		int i0, j0, i1, j1;
 		float x, y, s0, t0, s1, t1, dt;
 
 		dt = timeStep * n;
 		
-		for (int i = 1; i <= n; i++) {
-			for (int j = 1; j <= n; j++) {
+		for (int i = iStart; i <= iEnd; i++) {
+			int row = i * size;
+			for (int j = jStart; j <= jEnd; j++) {
 
 				//Goes backwards in time through velocity field
-				x = i - dt * velX[i][j];
-				y = j - dt * velY[i][j];
+				x = i - dt * velX[row + j];
+				y = j - dt * velY[row + j];
 
 				//Interpolates results
 				if (x > n + 0.5f) {
@@ -236,58 +954,74 @@ public class Solver {
 				t0 = 1 - t1;
 
 				//Modifies target array with a weighted average of the interpolated results
-				advected[i][j] = s0 * (t0 * ray2Advect[i0][j0] + t1 * ray2Advect[i0][j1])
-							   + s1 * (t0 * ray2Advect[i1][j0] + t1 * ray2Advect[i1][j1]);
+				int k0 = i0 * size, k1 = i1 * size;
+				advected[row + j] = s0 * (t0 * ray2Advect[k0 + j0] + t1 * ray2Advect[k0 + j1])
+								  + s1 * (t0 * ray2Advect[k1 + j0] + t1 * ray2Advect[k1 + j1]);
 			}
 		}
-		setBound(bound, advected);
 	}
 	
 	//Enforces boundary conditions
 		//if b = 1, then the top and bottom edges of array are open
 		//if b = 2, then the right and left edges of the array are open
 		//else all edges of the array are open
-	public void setBound(int b, float[][] x) {
+	public void setBound(int b, float[] x) {
+
+		long timer = metrics.start();
+		
+		int s = size;
+		
+		//Walls are visited row by row together with the edges, in the same order as the old full
+			//grid scan, so a wall next to an edge sees the same edge values it always did.
+			//w skips past the sorted walls list, so this costs O(n + walls) instead of O(n^2)
+		int w = 0;
+		while (w < wallCount && walls[w] < s) {
+			w++;
+		}
 		
 		for (int i = 1; i <= n; i++) {
 			
 			//Condensed if/else notation
 			//For example, first line is the same as
 			//if (b == 1) {x[0][i] = -x[1][i]} else {x[0][i] = x[1]i]}
+			//where x[i][j] is stored at x[i * s + j]
 			
-			x[0][i] 	= b == 1 ? -x[1][i] : x[1][i]; //left edge
+			x[i] 	= b == 1 ? -x[s + i] : x[s + i]; //left edge
 			
 			//If openRight == true, don't enforce right boundry condition
 			if(openRight == false) {
-				x[n+1][i] 	= b == 1 ? -x[n][i] : x[n][i]; //right edge
+				x[(n+1) * s + i] 	= b == 1 ? -x[n * s + i] : x[n * s + i]; //right edge
 			} else {
-				x[n+1][i] = x[n][i];
+				x[(n+1) * s + i] = x[n * s + i];
 			}
 			
-			x[i][0] 	= b == 2 ? -x[i][1] : x[i][1]; //bottom edge
-			x[i][n+1] 	= b == 2 ? -x[i][n] : x[i][n]; //top edge
+			x[i * s] 		= b == 2 ? -x[i * s + 1] : x[i * s + 1]; //bottom edge
+			x[i * s + n+1] 	= b == 2 ? -x[i * s + n] : x[i * s + n]; //top edge
 			
-			//Enforcing boundaries of user-drawn walls
-			for (int j = 1; j <= n; j++) {
-				if (drawBnd[i][j] != 0 && i < n && j < n) {
-					x[i - 1][j] = b == 1 ? -x[i - 2][j] : x[i - 2][j];
-					x[i][j] = 0;
-					x[i + 1][j] = b == 1 ? -x[i + 2][j] : x[i + 2][j];
+			//Enforcing boundaries of user-drawn walls in row i
+			for (int end = (i + 1) * s; w < wallCount && walls[w] < end; w++) {
+				int k = walls[w];
+				int j = k - i * s;
+				
+				if (i < n && j >= 1 && j < n) {
+					x[k - s] = b == 1 ? -x[k - 2*s] : x[k - 2*s];
+					x[k] = 0;
+					x[k + s] = b == 1 ? -x[k + 2*s] : x[k + 2*s];
 					
-					x[i][j - 1] = b == 2 ? -x[i][j - 2] : x[i][j - 2];
-					x[i][j] = 0;
-					x[i][j + 1] = b == 2 ? -x[i][j + 2] : x[i][j + 2];
+					x[k - 1] = b == 2 ? -x[k - 2] : x[k - 2];
+					x[k] = 0;
+					x[k + 1] = b == 2 ? -x[k + 2] : x[k + 2];
 				}
 			}
-			
 		}
 		
 		//Setting boundaries at corner cells to the average neighbors
-		x[0][0] 	= 0.5f * (x[1][0] + x[0][1]);
-		x[0][n+1] 	= 0.5f * (x[1][n+1] + x[0][n]);
-		x[n+1][0] 	= 0.5f * (x[n][0] + x[n+1][1]);
-		x[n+1][n+1] = 0.5f * (x[n][n+1] + x[n+1][1]);
+		x[0] 				= 0.5f * (x[s] + x[1]);
+		x[n+1] 				= 0.5f * (x[s + n+1] + x[n]);
+		x[(n+1) * s] 		= 0.5f * (x[n * s] + x[(n+1) * s + 1]);
+		x[(n+1) * s + n+1] 	= 0.5f * (x[n * s + n+1] + x[(n+1) * s + 1]);
 		
+		metrics.stop(Metrics.SET_BOUND, timer);
 	}
 
 	//Convenient swap functions
@@ -0,0 +1,181 @@
+/*
+ * Incompressible 2D fluid simulation based on the work of Jos Stam.
+ *
+ * Direct solver for the pressure Poisson equation on a grid without user-drawn walls.
+ *
+ * References:
+ *
+ * Jos Stam, "A Simple Fluid Solver based on the FFT", Journal of Graphics Tools 6(2), 2001, 43-52.
+ * John Makhoul, "A Fast Cosine Transform in One and Multiple Dimensions",
+ * IEEE Transactions on Acoustics, Speech, and Signal Processing 28(1), 1980, 27-34.
+ */
+
+import java.util.Arrays;
+
+public class SpectralPoisson {
+
+	//The pressure solve in project uses ghost cells that copy their neighbor, so every edge of
+	//the grid is a mirror. The cosines cos(pi k (j + 1/2) / n) satisfy exactly that condition
+	//and are eigenvectors of the 5 point Laplacian with eigenvalues 2 - 2cos(pi k / n) per axis.
+	//Transforming the right hand side with a 2D cosine transform (DCT-II), dividing by the
+	//eigenvalues and transforming back therefore solves the system exactly in O(n^2 log n).
+	//Each cosine transform is a length n FFT of a reordered line (Makhoul), and since the lines
+	//are real, two of them are packed into the real and imaginary parts of one FFT.
+
+	int n;
+	FFT fft;
+
+	//cos and sin of pi k / 2n, used to shift between the FFT and the cosine transform
+	double[] shiftCos, shiftSin;
+
+	//2 - 2cos(pi k / n), the 1D eigenvalues
+	double[] eigen;
+
+	//Spectrum of the current solve, row major n x n
+	double[] spectrum;
+
+	//FFT buffers and the two lines being transformed
+	double[] re, im;
+	double[] lineA, lineB;
+
+	void setup (int n) {
+
+		this.n = n;
+		fft = new FFT (n);
+
+		shiftCos = new double[n];
+		shiftSin = new double[n];
+		eigen = new double[n];
+		for (int k = 0; k < n; k++) {
+			shiftCos[k] = Math.cos(Math.PI * k / (2 * n));
+			shiftSin[k] = Math.sin(Math.PI * k / (2 * n));
+			eigen[k] = 2 - 2 * Math.cos(Math.PI * k / n);
+		}
+
+		spectrum = new double[n * n];
+		re = new double[n];
+		im = new double[n];
+		lineA = new double[n];
+		lineB = new double[n];
+	}
+
+	//Solves 4p - (sum of the 4 neighbors of p) = div for the interior of p.
+		//size is the row stride of p and div. The constant part of div has no solution with
+		//mirrored edges and is dropped, which leaves the pressure gradient unchanged.
+	public void solve (float[] p, float[] div, int n, int size) {
+
+		if (fft == null || this.n != n) {
+			setup (n);
+		}
+
+		//Cosine transform along j for every row i, two rows at a time
+		for (int i = 0; i < n; i += 2) {
+			boolean pair = i + 1 < n;
+			for (int j = 0; j < n; j++) {
+				lineA[j] = div[(i + 1) * size + j + 1];
+				lineB[j] = pair ? div[(i + 2) * size + j + 1] : 0;
+			}
+			forward ();
+			System.arraycopy(lineA, 0, spectrum, i * n, n);
+			if (pair) {
+				System.arraycopy(lineB, 0, spectrum, (i + 1) * n, n);
+			}
+		}
+
+		//Cosine transform along i for every column, divide by the eigenvalues and transform back
+		for (int kj = 0; kj < n; kj += 2) {
+			boolean pair = kj + 1 < n;
+			for (int i = 0; i < n; i++) {
+				lineA[i] = spectrum[i * n + kj];
+				lineB[i] = pair ? spectrum[i * n + kj + 1] : 0;
+			}
+			forward ();
+			for (int ki = 0; ki < n; ki++) {
+				double lambdaA = eigen[ki] + eigen[kj];
+				lineA[ki] = lambdaA == 0 ? 0 : lineA[ki] / lambdaA;
+				lineB[ki] = pair ? lineB[ki] / (eigen[ki] + eigen[kj + 1]) : 0;
+			}
+			inverse ();
+			for (int i = 0; i < n; i++) {
+				spectrum[i * n + kj] = lineA[i];
+				if (pair) {
+					spectrum[i * n + kj + 1] = lineB[i];
+				}
+			}
+		}
+
+		//Inverse transform along j and store the pressure
+		for (int i = 0; i < n; i += 2) {
+			boolean pair = i + 1 < n;
+			System.arraycopy(spectrum, i * n, lineA, 0, n);
+			if (pair) {
+				System.arraycopy(spectrum, (i + 1) * n, lineB, 0, n);
+			} else {
+				Arrays.fill(lineB, 0);
+			}
+			inverse ();
+			for (int j = 0; j < n; j++) {
+				p[(i + 1) * size + j + 1] = (float) lineA[j];
+				if (pair) {
+					p[(i + 2) * size + j + 1] = (float) lineB[j];
+				}
+			}
+		}
+	}
+
+	//Replaces lineA and lineB with their cosine transforms C[k] = sum of x[j] * cos(pi k (2j + 1) / 2n).
+		//The even samples of a line followed by the odd samples in reverse order have the FFT V with
+		//C[k] = Re(e^(-i pi k / 2n) V[k]). Line A goes in the real part and line B in the imaginary
+		//part, and their spectra are separated again using the symmetry of real sequences.
+	void forward () {
+
+		for (int j = 0; 2 * j < n; j++) {
+			re[j] = lineA[2 * j];
+			im[j] = lineB[2 * j];
+		}
+		for (int j = 0; 2 * j + 1 < n; j++) {
+			re[n - 1 - j] = lineA[2 * j + 1];
+			im[n - 1 - j] = lineB[2 * j + 1];
+		}
+
+		fft.transform (re, im, false);
+
+		for (int k = 0; k < n; k++) {
+			int m = k == 0 ? 0 : n - k;
+
+			double ar = 0.5 * (re[k] + re[m]), ai = 0.5 * (im[k] - im[m]);
+			double br = 0.5 * (im[k] + im[m]), bi = 0.5 * (re[m] - re[k]);
+
+			lineA[k] = ar * shiftCos[k] + ai * shiftSin[k];
+			lineB[k] = br * shiftCos[k] + bi * shiftSin[k];
+		}
+	}
+
+	//Inverse of forward.
+		//Rebuilds V[k] = e^(i pi k / 2n) (C[k] - i C[n - k]) for both lines, packs them into one
+		//FFT, transforms back and undoes the even/odd reordering.
+	void inverse () {
+
+		for (int k = 0; k < n; k++) {
+			double ca = lineA[k], da = k == 0 ? 0 : lineA[n - k];
+			double cb = lineB[k], db = k == 0 ? 0 : lineB[n - k];
+
+			double ar = ca * shiftCos[k] + da * shiftSin[k], ai = ca * shiftSin[k] - da * shiftCos[k];
+			double br = cb * shiftCos[k] + db * shiftSin[k], bi = cb * shiftSin[k] - db * shiftCos[k];
+
+			re[k] = ar - bi;
+			im[k] = ai + br;
+		}
+
+		fft.transform (re, im, true);
+
+		for (int j = 0; 2 * j < n; j++) {
+			lineA[2 * j] = re[j];
+			lineB[2 * j] = im[j];
+		}
+		for (int j = 0; 2 * j + 1 < n; j++) {
+			lineA[2 * j + 1] = re[n - 1 - j];
+			lineB[2 * j + 1] = im[n - 1 - j];
+		}
+	}
+}
@@ -0,0 +1,234 @@
+/*
+ * Incompressible 2D fluid simulation based on the work of Jos Stam.
+ *
+ * Domain decomposition backend for Solver.linearSolver and Solver.advect.
+ *
+ * The rows 1 to n are split into count strips of consecutive rows, and each strip is owned by
+ * one thread for the whole run: the calling thread runs strip 0, count - 1 worker threads run
+ * the others. A strip only writes its own rows. During a Gauss-Seidel sweep the only cells it
+ * reads outside of them are the row just above and the row just below, which come from two halo
+ * rows exchanged after every sweep, the same one cell layer the ghost rows 0 and n + 1 form
+ * around the whole grid. Between sweeps all threads meet at a barrier, and the thread that
+ * arrives last runs the global setBound, so walls and edges behave exactly as in the other
+ * modes, and then copies the new halos.
+ *
+ * Within a strip the sweep is the sequential one. Only the row above the first row of a strip is
+ * one sweep older than in the sequential order, so with a single strip the result is identical
+ * to Gauss-Seidel and with more it converges to the same solution. The exception is a wall that
+ * touches that row: the sequential sweep reads the cells setBound overwrites there before they
+ * are overwritten, so next to such a wall the solution differs slightly, as in the other modes.
+ *
+ * Advection reads the previous field at arbitrary backtraced positions, more than one cell away
+ * with large velocities, so there strips read the shared array directly and only write their
+ * own rows; the barrier before setBound takes the place of the exchange.
+ */
+
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+
+public class Strips {
+
+	static final int SOLVE = 0;
+	static final int ADVECT = 1;
+	static final int ADVECT_VELOCITY = 2;
+
+	Solver solv;
+
+	//Number of strips, changes take effect on the next call
+	int count = Runtime.getRuntime().availableProcessors();
+
+	//Rows of each strip and the copies of the rows just outside it
+	int n, size;
+	int[] first, last;
+	float[][] haloTop, haloBottom;
+
+	Thread[] workers = new Thread[0];
+	//start releases the workers into a job, step is passed after every sweep or advection
+	CyclicBarrier start, step;
+
+	//The current job, only written by the calling thread while the workers wait at start
+	int job;
+	int b;
+	float[] x, x0, y, velX, velY;
+	float a, c, invC, target;
+	int iterations;
+	int iter;
+	//Set by the step barrier when the job is finished, cleared by the start barrier
+	volatile boolean done;
+
+	public Strips (Solver s) {
+		solv = s;
+	}
+
+	//Solves c * x - a * (sum of the 4 neighbors of x) = x0 like Solver.linearSolver
+	public void solve (int b, float[] x, float[] x0, float a, float c) {
+		this.b = b;
+		this.a = a;
+		this.c = c;
+		invC = 1 / c;
+		target = solv.residualTarget(x0);
+		iterations = solv.iterations;
+		run (SOLVE, x, x0, null, null, null);
+	}
+
+	//Solver.advect without the timing, advected and ray2Advect go to x and x0
+	public void advect (int bound, float[] advected, float[] ray2Advect, float[] velX, float[] velY) {
+		b = bound;
+		run (ADVECT, advected, ray2Advect, null, velX, velY);
+	}
+
+	//Solver.advectVelocity without the timing
+	public void advectVelocity (float[] advX, float[] advY, float[] velX, float[] velY) {
+		run (ADVECT_VELOCITY, advX, null, advY, velX, velY);
+	}
+
+	void run (int job, float[] x, float[] x0, float[] y, float[] velX, float[] velY) {
+
+		setup ();
+		this.job = job;
+		this.x = x;
+		this.x0 = x0;
+		this.y = y;
+		this.velX = velX;
+		this.velY = velY;
+		iter = 0;
+		if (job == SOLVE) {
+			exchange ();
+		}
+
+		await (start);
+		work (0);
+		if (job == SOLVE) {
+			solv.lastIterations = iter;
+		}
+
+		//Nothing is kept past the call
+		this.x = this.x0 = this.y = this.velX = this.velY = null;
+	}
+
+	//Splits the grid into strips and starts the workers if n or count changed
+	void setup () {
+
+		int strips = Math.max(1, Math.min(count, solv.n));
+		if (n == solv.n && first != null && first.length == strips) {
+			return;
+		}
+		stop ();
+
+		n = solv.n;
+		size = solv.size;
+		first = new int[strips];
+		last = new int[strips];
+		haloTop = new float[strips][size];
+		haloBottom = new float[strips][size];
+		for (int w = 0; w < strips; w++) {
+			first[w] = 1 + w * n / strips;
+			last[w] = (w + 1) * n / strips;
+		}
+
+		start = new CyclicBarrier (strips, () -> done = false);
+		step = new CyclicBarrier (strips, this::between);
+		workers = new Thread[strips - 1];
+		for (int w = 1; w < strips; w++) {
+			final int strip = w;
+			workers[w - 1] = new Thread (() -> {
+				while (true) {
+					await (start);
+					if (job < 0) {
+						return;
+					}
+					work (strip);
+				}
+			}, "Strip " + w);
+			workers[w - 1].setDaemon(true);
+			workers[w - 1].start();
+		}
+	}
+
+	//Ends the worker threads, the next call starts them again
+	public void close () {
+		stop ();
+		first = null;
+	}
+
+	//Ends the worker threads of the current strips
+	void stop () {
+		if (workers.length == 0) {
+			return;
+		}
+		job = -1;
+		await (start);
+		workers = new Thread[0];
+	}
+
+	//Runs the current job on strip w until it's done
+	void work (int w) {
+		do {
+			if (job == SOLVE) {
+				sweep (w);
+			} else if (job == ADVECT) {
+				solv.advectRect(x, x0, velX, velY, first[w], last[w], 1, n);
+			} else {
+				solv.advectVelocityRows(x, y, velX, velY, first[w], last[w]);
+			}
+			await (step);
+		} while (!done);
+	}
+
+	//Run by the last thread to reach step, while the others wait
+	void between () {
+
+		if (job == ADVECT) {
+			solv.setBound(b, x);
+			done = true;
+			return;
+		} else if (job == ADVECT_VELOCITY) {
+			solv.setBound(1, x);
+			solv.setBound(2, y);
+			done = true;
+			return;
+		}
+
+		solv.setBound(b, x);
+		done = iter + 1 >= iterations || solv.converged(x, x0, a, c, target, iter);
+		iter++;
+		if (!done) {
+			exchange ();
+		}
+	}
+
+	//Copies the rows bordering every strip into its halos
+	void exchange () {
+		for (int w = 0; w < first.length; w++) {
+			System.arraycopy(x, (first[w] - 1) * size, haloTop[w], 0, size);
+			System.arraycopy(x, (last[w] + 1) * size, haloBottom[w], 0, size);
+		}
+	}
+
+	//One Gauss-Seidel sweep over the rows of strip w, reading the rows outside it from its halos
+	void sweep (int w) {
+		for (int i = first[w]; i <= last[w]; i++) {
+			int row = i * size;
+			float[] up = i == first[w] ? haloTop[w] : x;
+			float[] down = i == last[w] ? haloBottom[w] : x;
+			relaxRow (row, up, up == x ? row - size : 0, down, down == x ? row + size : 0);
+		}
+	}
+
+	void relaxRow (int row, float[] up, int upRow, float[] down, int downRow) {
+		float[] x = this.x, x0 = this.x0;
+		float a = this.a, invC = this.invC;
+		for (int j = 1; j <= n; j++) {
+			int k = row + j;
+			x[k] = (a * (up[upRow + j] + down[downRow + j] + x[k - 1] + x[k + 1]) + x0[k]) * invC;
+		}
+	}
+
+	static void await (CyclicBarrier barrier) {
+		try {
+			barrier.await();
+		} catch (InterruptedException | BrokenBarrierException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
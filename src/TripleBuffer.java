@@ -0,0 +1,46 @@
+/*
+ * Incompressible 2D fluid simulation based on the work of Jos Stam.
+ *
+ * Lock-free handoff of the latest value from one writer thread to one reader thread.
+ */
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TripleBuffer<T> {
+
+	//Bit set in middle when it holds a buffer the reader hasn't taken yet
+	static final int FRESH = 4;
+
+	//The writer fills back, the reader draws front and middle is the one being handed over.
+		//Publishing swaps back with middle and reading swaps front with middle, both with a single
+		//atomic exchange, so neither thread ever waits and the reader always gets the newest buffer.
+	Object[] buffers;
+	int back = 0;
+	int front = 1;
+	AtomicInteger middle = new AtomicInteger (2);
+
+	public TripleBuffer (T a, T b, T c) {
+		buffers = new Object[] {a, b, c};
+	}
+
+	//Buffer the writer may fill, only call from the writer thread
+	@SuppressWarnings("unchecked")
+	public T back () {
+		return (T) buffers[back];
+	}
+
+	//Hands the filled back buffer to the reader and takes another one to fill
+	public void publish () {
+		back = middle.getAndSet(back | FRESH) & 3;
+	}
+
+	//Newest published buffer, only call from the reader thread.
+		//The returned buffer stays untouched by the writer until the next call.
+	@SuppressWarnings("unchecked")
+	public T latest () {
+		if ((middle.get() & FRESH) != 0) {
+			front = middle.getAndSet(front) & 3;
+		}
+		return (T) buffers[front];
+	}
+}